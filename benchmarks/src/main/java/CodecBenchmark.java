@@ -0,0 +1,69 @@
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The CodecBenchmark class measures encoding and decoding one pixel update. The text benchmarks are the
+ * original wire format, "col row color" split on spaces and parsed with Integer.parseInt, kept here as the
+ * baseline; the binary ones are the fixed 8-byte payload and frame of Protocol.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+    private int col = 17;
+    private int row = 42;
+    private int color = 0xFF336699;
+    private byte[] text;
+    private byte[] binary;
+
+    @Setup
+    public void setup() {
+        text = (col + " " + row + " " + color).getBytes(StandardCharsets.UTF_8);
+        binary = new byte[Protocol.PIXEL_SIZE];
+        Protocol.encodePixel(binary, 0, col, row, color);
+    }
+
+    @Benchmark
+    public byte[] encodeText() {
+        String p = col + " " + row + " " + color;
+        return p.getBytes();
+    }
+
+    @Benchmark
+    public int decodeText() {
+        String content = new String(text, 0, text.length);
+        String[] p = content.split(" ");
+        return Integer.parseInt(p[0]) ^ Integer.parseInt(p[1]) ^ Integer.parseInt(p[2]);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        byte[] buf = new byte[Protocol.PIXEL_SIZE];
+        Protocol.encodePixel(buf, 0, col, row, color);
+        return buf;
+    }
+
+    @Benchmark
+    public byte[] encodeFrame() {
+        return Protocol.frame(Protocol.PIXEL, binary, Protocol.PIXEL_SIZE);
+    }
+
+    @Benchmark
+    public int decodeBinary() {
+        return Protocol.pixelCol(binary, 0) ^ Protocol.pixelRow(binary, 0) ^ Protocol.pixelColor(binary, 0);
+    }
+}
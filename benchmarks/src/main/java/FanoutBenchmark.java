@@ -0,0 +1,130 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The FanoutBenchmark class measures relaying one pixel update to every member of a room: applying it to the
+ * canvas, numbering it in the op ring and queueing it for each client. The clients are in memory; each one takes
+ * the frame off its queue right away, as a writer that keeps up would, so no socket is involved.
+ * The legacy benchmark is the original relay, kept here as the baseline: the "col row color" text message is
+ * parsed into an int[][], and the frame is written to every client's stream in turn while holding the lock of
+ * the client list, here to streams that discard what they are sent. The original socket streams were not
+ * buffered, so it also made a system call for every byte of a header and every payload, for every client;
+ * those are not counted, and the baseline is a lower bound.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FanoutBenchmark {
+    /**
+     * A client whose writer never falls behind.
+     */
+    static class Sink extends Client {
+        @Override
+        void write(byte[] frame) {
+            super.write(frame);
+            queue.poll();
+        }
+    }
+
+    /**
+     * The stream of a client's socket, without the socket.
+     */
+    static class Discard extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    @Param({ "1", "10", "100", "1000" })
+    public int clients;
+
+    private ScheduledExecutorService timer;
+    private Room room;
+    private final byte[] pixel = new byte[Protocol.PIXEL_SIZE];
+    private int next;
+    private final int[][] data = new int[50][50];
+    private final ArrayList<OutputStream> list = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        ServerConfig config = new ServerConfig();
+        Metrics metrics = new Metrics(null);
+        timer = Executors.newSingleThreadScheduledExecutor();
+        room = new Room("bench", config, timer, timer, metrics);
+        Protocol.Hello hello = new Protocol.Hello();
+        hello.version = Protocol.VERSION;
+        for (int i = 0; i < clients; i++) {
+            Client client = new Sink();
+            client.name = "client" + i;
+            client.version = Protocol.VERSION;
+            client.room = room;
+            client.queue = new OutboundQueue(config.queueCapacity, config.slowConsumer, room::canvasFrame, metrics);
+            room.join(client, hello);
+            while (client.queue.poll() != null) {
+            }
+            list.add(new Discard());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        room.close();
+        timer.shutdownNow();
+    }
+
+    @Benchmark
+    public void relayPixel() {
+        int i = next++;
+        Protocol.encodePixel(pixel, 0, i % 50, (i / 50) % 50, i | 0xFF000000);
+        room.handle(null, Protocol.PIXEL, pixel, Protocol.PIXEL_SIZE);
+    }
+
+    @Benchmark
+    public void legacyRelayPixel() {
+        int i = next++;
+        byte[] buffer = ((i % 50) + " " + ((i / 50) % 50) + " " + (i | 0xFF000000)).getBytes();
+        int len = buffer.length;
+        String content = new String(buffer, 0, len);
+        String[] p = content.split(" ");
+        int col = Integer.parseInt(p[0]);
+        int row = Integer.parseInt(p[1]);
+        int color = Integer.parseInt(p[2]);
+        data[col][row] = color;
+        synchronized (list) {
+            for (int k = 0; k < list.size(); k++) {
+                try {
+                    DataOutputStream out = new DataOutputStream(list.get(k));
+                    out.writeInt(0);
+                    out.writeInt(len);
+                    out.write(buffer, 0, len);
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+import java.awt.Point;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The FillBenchmark class measures flood-filling the paint area, as the bucket tool and the server's FILL
+ * handling do, on square canvases of several sizes. A blank canvas is one big area of long spans;
+ * the maze is one winding corridor, which splits into many short spans and turns.
+ * Every call fills the same area with the other of two colors, so each fill changes every cell of the area.
+ * The legacy benchmark is the original UI.paintArea, a breadth-first search over an int[][] with a LinkedList
+ * of Points, kept here as the baseline; the text message it sent for every cell is left out, see CodecBenchmark.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FillBenchmark {
+    private static final int WALL = 0xFF000000;
+
+    @Param({ "50", "500", "2000" })
+    public int size;
+
+    @Param({ "blank", "maze" })
+    public String pattern;
+
+    private TiledCanvas canvas;
+    private int[][] panel;
+    private final FloodFill fill = new FloodFill();
+    private int color = 0xFFFF0000;
+
+    @Setup
+    public void setup() {
+        canvas = new TiledCanvas(size, size);
+        if (pattern.equals("maze")) {
+            // every other row is a wall with a gap at alternating ends
+            for (int y = 1; y < size; y += 2) {
+                int gap = (y / 2) % 2 == 0 ? size - 1 : 0;
+                for (int x = 0; x < size; x++) {
+                    if (x != gap) canvas.set(x, y, WALL);
+                }
+            }
+        }
+        panel = new int[size][size];
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                panel[x][y] = canvas.get(x, y);
+            }
+        }
+    }
+
+    @Benchmark
+    public int fill() {
+        color = color == 0xFFFF0000 ? 0xFF0000FF : 0xFFFF0000;
+        return fill.fill(canvas, 0, 0, color);
+    }
+
+    @Benchmark
+    public int legacyFill() {
+        color = color == 0xFFFF0000 ? 0xFF0000FF : 0xFFFF0000;
+        LinkedList<Point> filledPixels = new LinkedList<Point>();
+        int originalColor = panel[0][0];
+        LinkedList<Point> buffer = new LinkedList<Point>();
+        if (originalColor != color) {
+            buffer.add(new Point(0, 0));
+            while (!buffer.isEmpty()) {
+                Point point = buffer.removeFirst();
+                int x = point.x;
+                int y = point.y;
+                if (panel[x][y] != originalColor) continue;
+                panel[x][y] = color;
+                filledPixels.add(point);
+                if (x > 0 && panel[x - 1][y] == originalColor) buffer.add(new Point(x - 1, y));
+                if (x < panel.length - 1 && panel[x + 1][y] == originalColor) buffer.add(new Point(x + 1, y));
+                if (y > 0 && panel[x][y - 1] == originalColor) buffer.add(new Point(x, y - 1));
+                if (y < panel[0].length - 1 && panel[x][y + 1] == originalColor) buffer.add(new Point(x, y + 1));
+            }
+        }
+        return filledPixels.size();
+    }
+
+    @Benchmark
+    public byte[] fillAndEncode() {
+        fill();
+        return fill.encode();
+    }
+}
@@ -0,0 +1,119 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The SaveLoadBenchmark class measures saving a drawing to a file and loading it back. A sketch is a few
+ * strokes on a mostly blank canvas, which compresses well; noise gives every cell a random color and is the
+ * worst case. The file lives in the temporary directory, so the numbers include the page cache but not the disk.
+ * The legacy benchmarks are the original SaveAndLoad, which wrote and read every cell of an int[][] as an int
+ * through an unbuffered DataOutputStream and DataInputStream, kept here as the baseline.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SaveLoadBenchmark {
+    @Param({ "50", "500", "2000" })
+    public int size;
+
+    @Param({ "sketch", "noise" })
+    public String pattern;
+
+    private TiledCanvas canvas;
+    private File file;
+    private int[][] panel;
+    private File legacyFile;
+
+    @Setup
+    public void setup() throws IOException {
+        canvas = new TiledCanvas(size, size);
+        Random random = new Random(42);
+        if (pattern.equals("noise")) {
+            for (int y = 0; y < size; y++) {
+                for (int x = 0; x < size; x++) {
+                    canvas.set(x, y, random.nextInt());
+                }
+            }
+        } else {
+            for (int stroke = 0; stroke < 20; stroke++) {
+                int y = random.nextInt(size);
+                int x = random.nextInt(size);
+                canvas.setRun(x, y, Math.min(size - x, size / 4 + 1), 0xFF000000 | random.nextInt());
+            }
+        }
+        file = File.createTempFile("kidpaint-bench", ".kpnt");
+        SaveAndLoad.save(file.getPath(), canvas, null);
+        panel = new int[size][size];
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                panel[x][y] = canvas.get(x, y);
+            }
+        }
+        legacyFile = File.createTempFile("kidpaint-bench", ".legacy");
+        legacySave();
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+        legacyFile.delete();
+    }
+
+    @Benchmark
+    public void save() throws IOException {
+        SaveAndLoad.save(file.getPath(), canvas, null);
+    }
+
+    @Benchmark
+    public TiledCanvas load() throws IOException {
+        return SaveAndLoad.load(file.getPath(), null);
+    }
+
+    @Benchmark
+    public void legacySave() throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(legacyFile));
+        out.writeInt(panel.length);
+        out.writeInt(panel[0].length);
+        for (int i = 0; i < panel.length; i++) {
+            for (int j = 0; j < panel[i].length; j++) {
+                out.writeInt(panel[i][j]);
+            }
+        }
+        out.flush();
+        out.close();
+    }
+
+    @Benchmark
+    public int[][] legacyLoad() throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(legacyFile));
+        int[][] drawing = new int[in.readInt()][in.readInt()];
+        for (int i = 0; i < drawing.length; i++) {
+            for (int j = 0; j < drawing[i].length; j++) {
+                drawing[i][j] = in.readInt();
+            }
+        }
+        in.close();
+        return drawing;
+    }
+}
@@ -0,0 +1,100 @@
+import java.util.Stack;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The UndoBenchmark class measures what the undo history costs a drawing operation: recording a stroke or fill
+ * of the given number of cells, and undoing and redoing one. The history has the client's default budget,
+ * so old operations are evicted the way they are while drawing.
+ * The legacy benchmarks are the original undo of the UI, which pushed a clone of the whole int[][] canvas
+ * before every fill, and even before every pixel of a stroke, and swapped clones to undo and redo, kept here
+ * as the baseline. Its stack grew without limit, so here it keeps only as many clones as fit the same budget.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UndoBenchmark {
+    private static final long BUDGET = 1 << 20;
+
+    @Param({ "1", "100", "10000" })
+    public int cells;
+
+    private UndoHistory history;
+    private TiledCanvas canvas;
+    private int color;
+    private int[][] panel;
+    private final Stack<int[][]> undoStack = new Stack<>();
+    private final Stack<int[][]> redoStack = new Stack<>();
+
+    @Setup
+    public void setup() {
+        history = new UndoHistory(BUDGET);
+        canvas = new TiledCanvas(200, 200);
+        record();
+        panel = new int[canvas.width()][canvas.height()];
+        legacyRecord();
+    }
+
+    @Benchmark
+    public void record() {
+        int old = color;
+        color = color + 1;
+        history.begin();
+        for (int i = 0; i < cells; i++) {
+            int col = i % canvas.width();
+            int row = i / canvas.width();
+            history.record(col, row, old, color);
+            canvas.set(col, row, color);
+        }
+        history.end();
+    }
+
+    @Benchmark
+    public int undoRedo() {
+        return history.undo(canvas).size() + history.redo(canvas).size();
+    }
+
+    @Benchmark
+    public void legacyRecord() {
+        color = color + 1;
+        undoStack.push(cloneArray(panel));
+        redoStack.clear();
+        if ((long) undoStack.size() * panel.length * panel[0].length * 4 > BUDGET) undoStack.remove(0);
+        for (int i = 0; i < cells; i++) {
+            int col = i % panel.length;
+            int row = i / panel.length;
+            panel[col][row] = color;
+        }
+    }
+
+    @Benchmark
+    public int legacyUndoRedo() {
+        redoStack.push(cloneArray(panel));
+        panel = undoStack.pop();
+        undoStack.push(cloneArray(panel));
+        panel = redoStack.pop();
+        return panel.length;
+    }
+
+    private static int[][] cloneArray(int[][] source) {
+        int[][] clone = new int[source.length][];
+        for (int i = 0; i < source.length; i++) {
+            clone[i] = source[i].clone();
+        }
+        return clone;
+    }
+}
@@ -0,0 +1,99 @@
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The BroadcastScheduler class batches drawing updates instead of relaying each one right away.
+ * Updated cells are collected in a dirty set, and once per tick the final color of every dirty cell
+ * is broadcast in REGION frames of at most maxBatch cells. Intermediate colors that were overwritten
+ * within the same tick are never sent, so the outbound rate per client is bounded by the tick length.
+ */
+class BroadcastScheduler {
+    private final Room room;
+    private final TiledCanvas data;
+    private final int maxBatch;
+    private final BitSet dirty = new BitSet();
+    private int[] dirtyCells = new int[1024];
+    private int dirtyCount;
+    private final ScheduledFuture<?> task;
+
+    /**
+     * @param room The room to broadcast to.
+     * @param data The canvas holding the final colors. It doubles as the lock guarding the dirty set.
+     * @param timer The timer running the ticks.
+     * @param tickMillis The length of a tick in milliseconds.
+     * @param maxBatch The maximum number of cells in one REGION frame.
+     */
+    BroadcastScheduler(Room room, TiledCanvas data, ScheduledExecutorService timer, int tickMillis, int maxBatch) {
+        this.room = room;
+        this.data = data;
+        this.maxBatch = maxBatch;
+        task = timer.scheduleAtFixedRate(this::flush, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops ticking. Pending updates are dropped.
+     */
+    void stop() {
+        task.cancel(false);
+    }
+
+    /**
+     * Marks a cell as changed. The caller holds the canvas lock.
+     *
+     * @param col The column of the cell.
+     * @param row The row of the cell.
+     */
+    void mark(int col, int row) {
+        int cell = row * data.width() + col;
+        if (dirty.get(cell)) return;
+        dirty.set(cell);
+        if (dirtyCount == dirtyCells.length)
+            dirtyCells = Arrays.copyOf(dirtyCells, dirtyCount * 2);
+        dirtyCells[dirtyCount++] = cell;
+    }
+
+    /**
+     * Marks every cell covered by a REGION payload as changed. The caller holds the canvas lock.
+     *
+     * @param buffer The byte array containing the payload.
+     * @param len The length of the payload.
+     */
+    void markRegion(byte[] buffer, int len) {
+        Region.decode(buffer, len, (col, row, length, color) -> {
+            if (row >= data.height()) return;
+            int end = Math.min(col + length, data.width());
+            for (int x = col; x < end; x++) {
+                mark(x, row);
+            }
+        });
+    }
+
+    /**
+     * Broadcasts the final color of every dirty cell and clears the dirty set.
+     */
+    void flush() {
+        synchronized (data) {
+            int width = data.width();
+            Region region = new Region();
+            for (int i = 0; i < dirtyCount; i++) {
+                int cell = dirtyCells[i];
+                region.add(cell % width, cell / width, data.get(cell % width, cell / width));
+                if (region.size() == maxBatch) {
+                    broadcast(region);
+                    region.clear();
+                }
+            }
+            dirty.clear();
+            dirtyCount = 0;
+            if (!region.isEmpty()) broadcast(region);
+        }
+    }
+
+    private void broadcast(Region region) {
+        byte[] payload = region.encode();
+        room.publish(Protocol.frame(Protocol.REGION, payload, payload.length));
+    }
+}
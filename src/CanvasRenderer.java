@@ -0,0 +1,179 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.BitSet;
+import java.util.HashMap;
+import javax.swing.JComponent;
+
+/**
+ * The CanvasRenderer class draws a canvas as a grid of circles into an off-screen image.
+ * Each circle is copied from a sprite pre-rendered once per color, and after a change only the cells
+ * of the canvas's dirty tiles that actually changed are redrawn, so painting the component is a single
+ * image copy and repainting after a change costs in proportion to the change, not to the canvas.
+ * Canvases too large for an off-screen image are drawn directly from the sprites for the visible area instead.
+ * All methods must be called on the event dispatch thread.
+ */
+public class CanvasRenderer {
+    /**
+     * The largest off-screen image, in pixels, before falling back to direct drawing: about four 1920 by 1080
+     * screens, or 32 MiB. A bigger canvas does not fit on screen anyway, so only its visible part is drawn.
+     */
+    static final long MAX_BUFFER_PIXELS = 1 << 23;
+    private static final int MAX_SPRITES = 4096;
+
+    private final JComponent target;
+    private final HashMap<Integer, BufferedImage> sprites = new HashMap<>();
+    private TiledCanvas canvas;
+    // the colors currently drawn in the buffer
+    private TiledCanvas shown;
+    private BufferedImage buffer;
+    private int blockSize;
+
+    /**
+     * @param target The component the canvas is shown in; it is repainted wherever the canvas changed.
+     */
+    CanvasRenderer(JComponent target) {
+        this.target = target;
+    }
+
+    /**
+     * Shows a new canvas and draws it completely.
+     *
+     * @param canvas The canvas to show.
+     * @param blockSize The size of a cell in pixels.
+     */
+    void setCanvas(TiledCanvas canvas, int blockSize) {
+        this.canvas = canvas;
+        if (blockSize != this.blockSize) sprites.clear();
+        this.blockSize = blockSize;
+        canvas.takeDirtyTiles();
+        shown = null;
+        buffer = null;
+        long pixels = (long) canvas.width() * canvas.height() * blockSize * blockSize;
+        if (pixels <= MAX_BUFFER_PIXELS) {
+            buffer = new BufferedImage(canvas.width() * blockSize, canvas.height() * blockSize, BufferedImage.TYPE_INT_RGB);
+            shown = new TiledCanvas(canvas.width(), canvas.height());
+            Graphics2D g = buffer.createGraphics();
+            BufferedImage blank = sprite(0);
+            for (int y = 0; y < canvas.height(); y++) {
+                for (int x = 0; x < canvas.width(); x++) {
+                    int color = canvas.get(x, y);
+                    g.drawImage(color == 0 ? blank : sprite(color), x * blockSize, y * blockSize, null);
+                    shown.set(x, y, color);
+                }
+            }
+            g.dispose();
+        }
+        target.repaint();
+    }
+
+    /**
+     * Redraws the cells that changed since the last call and repaints the area around them.
+     */
+    void sync() {
+        if (canvas == null) return;
+        BitSet dirty = canvas.takeDirtyTiles();
+        if (dirty.isEmpty()) return;
+        Rectangle area = null;
+        Graphics2D g = buffer != null ? buffer.createGraphics() : null;
+        for (int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i + 1)) {
+            Rectangle changed = g != null ? drawTile(g, i) : tileBounds(i);
+            if (changed == null) continue;
+            if (area == null) area = changed;
+            else area.add(changed);
+        }
+        if (g != null) g.dispose();
+        if (area != null) target.repaint(area);
+    }
+
+    /**
+     * Paints the canvas.
+     *
+     * @param g The graphics of the target component, clipped to the area being repainted.
+     */
+    void paint(Graphics2D g) {
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) clip = new Rectangle(0, 0, target.getWidth(), target.getHeight());
+        g.setColor(Color.black);
+        g.fillRect(clip.x, clip.y, clip.width, clip.height);
+        if (canvas == null) return;
+        if (buffer != null) {
+            g.drawImage(buffer, 0, 0, null);
+            return;
+        }
+        int endX = Math.min(canvas.width(), (clip.x + clip.width) / blockSize + 1);
+        int endY = Math.min(canvas.height(), (clip.y + clip.height) / blockSize + 1);
+        for (int x = Math.max(0, clip.x / blockSize); x < endX; x++) {
+            for (int y = Math.max(0, clip.y / blockSize); y < endY; y++) {
+                g.drawImage(sprite(canvas.get(x, y)), x * blockSize, y * blockSize, null);
+            }
+        }
+    }
+
+    /**
+     * Redraws the cells of a tile whose color differs from the drawn one.
+     *
+     * @return The pixel bounds of the redrawn cells, or null if none changed.
+     */
+    private Rectangle drawTile(Graphics2D g, int index) {
+        int x0 = (index % canvas.tilesX()) << TiledCanvas.TILE_SHIFT;
+        int y0 = (index / canvas.tilesX()) << TiledCanvas.TILE_SHIFT;
+        int endX = Math.min(x0 + TiledCanvas.TILE_SIZE, canvas.width());
+        int endY = Math.min(y0 + TiledCanvas.TILE_SIZE, canvas.height());
+        int[] cells = canvas.tile(index);
+        int[] drawn = shown.tile(index);
+        if (cells == drawn) return null;
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = -1, maxY = -1;
+        for (int y = y0; y < endY; y++) {
+            int cell = (y & TiledCanvas.TILE_MASK) << TiledCanvas.TILE_SHIFT;
+            for (int x = x0; x < endX; x++, cell++) {
+                // compare the tile arrays directly, a blank tile being null
+                int color = cells == null ? 0 : cells[cell];
+                if (color == (drawn == null ? 0 : drawn[cell])) continue;
+                shown.set(x, y, color);
+                drawn = shown.tile(index);
+                g.drawImage(sprite(color), x * blockSize, y * blockSize, null);
+                minX = Math.min(minX, x);
+                minY = Math.min(minY, y);
+                maxX = Math.max(maxX, x);
+                maxY = Math.max(maxY, y);
+            }
+        }
+        if (maxX < 0) return null;
+        return new Rectangle(minX * blockSize, minY * blockSize, (maxX - minX + 1) * blockSize,
+                (maxY - minY + 1) * blockSize);
+    }
+
+    private Rectangle tileBounds(int index) {
+        int x0 = (index % canvas.tilesX()) << TiledCanvas.TILE_SHIFT;
+        int y0 = (index / canvas.tilesX()) << TiledCanvas.TILE_SHIFT;
+        return new Rectangle(x0 * blockSize, y0 * blockSize, TiledCanvas.TILE_SIZE * blockSize,
+                TiledCanvas.TILE_SIZE * blockSize);
+    }
+
+    /**
+     * @param color The color of a cell; the alpha channel is ignored.
+     * @return The pre-rendered circle of a cell of this color on a black background.
+     */
+    private BufferedImage sprite(int color) {
+        int rgb = color & 0xFFFFFF;
+        BufferedImage sprite = sprites.get(rgb);
+        if (sprite != null) return sprite;
+        if (sprites.size() >= MAX_SPRITES) sprites.clear();
+
+        sprite = new BufferedImage(blockSize, blockSize, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = sprite.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setColor(Color.black);
+        g.fillRect(0, 0, blockSize, blockSize);
+        g.setColor(new Color(rgb));
+        g.fillArc(0, 0, blockSize, blockSize, 0, 360);
+        g.setColor(Color.darkGray);
+        g.drawArc(0, 0, blockSize - 1, blockSize - 1, 0, 360);
+        g.dispose();
+        sprites.put(rgb, sprite);
+        return sprite;
+    }
+}
@@ -0,0 +1,209 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.function.Consumer;
+
+/**
+ * The Chat class is the chat channel of a room. Messages are UTF-8 text of any length up to a limit, one per
+ * CHAT frame. The last messages are kept in a bounded history that a joining member is sent first, in a single
+ * CHAT_HISTORY frame if it speaks version 5 and as separate CHAT frames otherwise.
+ * Every member may send a burst of messages and then a steady rate, which a token bucket per client enforces.
+ * The channel has its own lock and member list, so chat never waits for the canvas lock that orders drawing;
+ * chat frames are queued without the slow-consumer policy and simply dropped for a member whose queue is full,
+ * since the member's drawing matters more and the message stays in the history.
+ * A CHAT_HISTORY payload is an int message count followed by every message as an int length and UTF-8 bytes.
+ */
+class Chat {
+    /** The most bytes the history keeps, whatever the number of messages. */
+    static final int HISTORY_BYTES = 256 * 1024;
+
+    /**
+     * What is left of a client's allowance of messages.
+     */
+    static class Bucket {
+        double tokens;
+        long refilled = System.nanoTime();
+        // whether the client has been told it is too fast since its last accepted message
+        boolean warned;
+    }
+
+    private final int historyCapacity;
+    private final int maxMessage;
+    private final double rate;
+    private final double burst;
+    // all guarded by this
+    private final ArrayDeque<byte[]> history = new ArrayDeque<>();
+    private int historyBytes;
+    private final ArrayList<Client> members = new ArrayList<>();
+
+    /**
+     * @param config The server options: history length, message size limit and rate limit.
+     */
+    Chat(ServerConfig config) {
+        this.historyCapacity = config.chatHistory;
+        this.maxMessage = config.chatMax;
+        this.rate = config.chatRate;
+        this.burst = config.chatBurst;
+    }
+
+    /**
+     * Sends a new member the history and adds it to the channel.
+     *
+     * @param client The client that joined.
+     */
+    synchronized void join(Client client) {
+        if (!history.isEmpty()) {
+            if (client.version >= Protocol.CHAT_HISTORY_VERSION) {
+                byte[] payload = encodeHistory(history);
+                client.writeLossy(Protocol.frame(Protocol.CHAT_HISTORY, payload, payload.length));
+            } else {
+                for (byte[] message : history) {
+                    client.writeLossy(Protocol.frame(Protocol.CHAT, message, message.length));
+                }
+            }
+        }
+        members.add(client);
+    }
+
+    synchronized void leave(Client client) {
+        members.remove(client);
+    }
+
+    /**
+     * Checks a message from a member against the size and rate limits. A refused message is answered with a
+     * notice to its sender only. The peer links of the replicas listed in --peers carry the messages of a whole
+     * node, which that node has already limited, so they are not limited again.
+     * Runs on the thread that reads the client.
+     *
+     * @param client The client that sent the message.
+     * @param buffer The byte array containing the message.
+     * @param len The length of the message.
+     * @return The message as well-formed UTF-8, or null if it is refused.
+     */
+    byte[] check(Client client, byte[] buffer, int len) {
+        if (len > maxMessage) {
+            notice(client, "Your message is too long; the limit is " + maxMessage + " bytes.");
+            return null;
+        }
+        if (!client.peer) {
+            Bucket bucket = client.chatBucket;
+            if (bucket == null) {
+                bucket = client.chatBucket = new Bucket();
+                bucket.tokens = burst;
+            }
+            long now = System.nanoTime();
+            bucket.tokens = Math.min(burst, bucket.tokens + (now - bucket.refilled) / 1e9 * rate);
+            bucket.refilled = now;
+            if (bucket.tokens < 1) {
+                if (!bucket.warned) notice(client, "You are sending messages too fast; slow down.");
+                bucket.warned = true;
+                return null;
+            }
+            bucket.tokens--;
+            bucket.warned = false;
+        }
+        // replaces malformed sequences, so every member can decode what it is sent
+        return new String(buffer, 0, len, StandardCharsets.UTF_8).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Adds a message to the history and sends it to every member, the sender included.
+     *
+     * @param message The UTF-8 message; it must not be modified afterwards.
+     */
+    synchronized void publish(byte[] message) {
+        remember(message);
+        byte[] frame = Protocol.frame(Protocol.CHAT, message, message.length);
+        for (Client client : members) {
+            client.writeLossy(frame);
+        }
+    }
+
+    /**
+     * Replaces the history with one received from elsewhere, such as a replica's primary, without sending it
+     * to anyone; members that missed messages get them when they next join.
+     *
+     * @param payload The CHAT_HISTORY payload.
+     * @param len The length of the payload.
+     * @throws IllegalArgumentException If the payload is malformed.
+     */
+    void restore(byte[] payload, int len) {
+        ArrayList<byte[]> messages = new ArrayList<>();
+        decodeHistory(payload, len, messages::add);
+        synchronized (this) {
+            history.clear();
+            historyBytes = 0;
+            for (byte[] message : messages) {
+                remember(message);
+            }
+        }
+    }
+
+    private void remember(byte[] message) {
+        history.addLast(message);
+        historyBytes += message.length;
+        while (history.size() > historyCapacity || (historyBytes > HISTORY_BYTES && history.size() > 1)) {
+            historyBytes -= history.removeFirst().length;
+        }
+    }
+
+    /**
+     * Sends a notice from the server to one member only.
+     *
+     * @param client The member.
+     * @param text The notice, without the "Server: " it is sent with.
+     */
+    static void notice(Client client, String text) {
+        // a peer link would relay the notice to every member of its replica
+        if (client.peer) return;
+        byte[] message = ("Server: " + text).getBytes(StandardCharsets.UTF_8);
+        client.writeLossy(Protocol.frame(Protocol.CHAT, message, message.length));
+    }
+
+    /**
+     * Encodes messages as a CHAT_HISTORY payload.
+     *
+     * @param messages The UTF-8 messages, oldest first.
+     * @return The payload.
+     */
+    static byte[] encodeHistory(Collection<byte[]> messages) {
+        int size = 4;
+        for (byte[] message : messages) {
+            size += 4 + message.length;
+        }
+        byte[] buf = new byte[size];
+        Protocol.putInt(buf, 0, messages.size());
+        int off = 4;
+        for (byte[] message : messages) {
+            Protocol.putInt(buf, off, message.length);
+            System.arraycopy(message, 0, buf, off + 4, message.length);
+            off += 4 + message.length;
+        }
+        return buf;
+    }
+
+    /**
+     * Decodes a CHAT_HISTORY payload and hands every message to the consumer, oldest first.
+     *
+     * @param buf The buffer containing the payload.
+     * @param len The length of the payload.
+     * @param consumer Receives the UTF-8 bytes of each message.
+     * @throws IllegalArgumentException If the payload is malformed.
+     */
+    static void decodeHistory(byte[] buf, int len, Consumer<byte[]> consumer) {
+        if (len < 4) throw new IllegalArgumentException("History too short");
+        int count = Protocol.getInt(buf, 0);
+        int off = 4;
+        for (int i = 0; i < count; i++) {
+            if (off + 4 > len) throw new IllegalArgumentException("History truncated");
+            int length = Protocol.getInt(buf, off);
+            off += 4;
+            if (length < 0 || off + length > len) throw new IllegalArgumentException("History truncated");
+            byte[] message = new byte[length];
+            System.arraycopy(buf, off, message, 0, length);
+            consumer.accept(message);
+            off += length;
+        }
+    }
+}
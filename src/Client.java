@@ -0,0 +1,107 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The Client class is one connection to the server: who it is, which room it is in and the queue of frames
+ * waiting to be written to it. The classic engine writes the queue from a thread of the client's own;
+ * the nio engine uses NioClient instead.
+ */
+class Client {
+    String name;
+    Socket socket;
+    DataOutputStream out;
+    int version;
+    Room room;
+    OutboundQueue queue;
+    // what is left of the client's chat allowance, created with its first message
+    Chat.Bucket chatBucket;
+    // whether this is the peer link of a replica listed in --peers, set by the server when the client joins
+    boolean peer;
+    // compresses what is written to the client, or null if the client did not ask for compression
+    Compression.Encoder encoder;
+    // decompresses what the client sends, created with its first compressed frame
+    Compression.Decoder decoder;
+
+    /**
+     * @return The address the client connects from.
+     */
+    InetAddress address() {
+        return socket.getInetAddress();
+    }
+
+    /**
+     * Queues one frame for this client. If the slow-consumer policy gives up on the client, it is closed.
+     * Callers hold the lock of the client's room, so the queue can take a consistent resync snapshot.
+     *
+     * @param type The type of the frame.
+     * @param data The byte array containing the payload.
+     * @param len The length of the payload.
+     */
+    void write(int type, byte[] data, int len) {
+        write(Protocol.frame(type, data, len));
+    }
+
+    /**
+     * Queues one encoded frame for this client. The frame may be shared with other clients and must not be modified.
+     *
+     * @param frame The encoded frame, header included.
+     */
+    void write(byte[] frame) {
+        if (!queue.offer(frame)) close();
+    }
+
+    /**
+     * Queues one encoded frame for this client, or drops it if the client's queue is full.
+     * Needs no lock, since the slow-consumer policy is not applied.
+     *
+     * @param frame The encoded frame, header included.
+     */
+    void writeLossy(byte[] frame) {
+        queue.offerLossy(frame);
+    }
+
+    /**
+     * Tells the client in a chat notice why it is turned away, before the connection is closed.
+     * Only used before the client joins a room, while its writer is not running yet.
+     *
+     * @param text The reason.
+     * @throws IOException If an I/O error occurs.
+     */
+    void refuse(String text) throws IOException {
+        byte[] message = ("Server: " + text).getBytes(StandardCharsets.UTF_8);
+        byte[] frame = Protocol.frame(Protocol.CHAT, message, message.length);
+        out.write(encoder != null ? encoder.encode(frame) : frame);
+        out.flush();
+    }
+
+    /**
+     * Writes queued frames to the socket until the queue is closed. Runs on the client's own writer thread.
+     */
+    void drain() {
+        try {
+            byte[] frame;
+            while ((frame = queue.take()) != null) {
+                out.write(encoder != null ? encoder.encode(frame) : frame);
+                if (queue.isEmpty()) out.flush();
+            }
+        } catch (IOException | InterruptedException e) {
+            close();
+        }
+    }
+
+    /**
+     * Stops the writer and closes the connection.
+     */
+    void close() {
+        queue.close();
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+        if (encoder != null) encoder.end();
+        if (decoder != null) decoder.end();
+    }
+}
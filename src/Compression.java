@@ -0,0 +1,208 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The Compression class holds the two ends of a compressed connection. Both ends of a connection that agreed
+ * on compression in the handshake keep one deflate stream per direction for the whole connection. A frame of
+ * at least the threshold is fed into the stream, sync-flushed and sent as a COMPRESSED frame, whose payload
+ * is exactly the deflate output for that one frame; smaller frames are sent as they are, so single pixels and
+ * short chat messages cost nothing extra. Since the stream keeps its window across frames, a fill that looks
+ * like the last one or a snapshot of a mostly blank canvas shrinks to a small fraction of its size.
+ * A receiver always understands COMPRESSED frames; the handshake only tells the sender it may send them.
+ */
+class Compression {
+    private Compression() {
+    }
+
+    /**
+     * Compresses the frames one end sends. Used by the thread that writes the connection.
+     */
+    static class Encoder {
+        private final int threshold;
+        private final Metrics metrics;
+        private Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private byte[] buffer = new byte[8 * 1024];
+
+        /**
+         * @param threshold The size of the smallest frame to compress, header included.
+         * @param metrics Counts the bytes and time spent compressing, or null.
+         */
+        Encoder(int threshold, Metrics metrics) {
+            this.threshold = threshold;
+            this.metrics = metrics;
+        }
+
+        /**
+         * Compresses a frame if it is big enough. The handshake is never compressed.
+         *
+         * @param frame The encoded frame, header included; it is not modified.
+         * @return The COMPRESSED frame, or the frame itself if it is too small or the encoder has ended.
+         */
+        synchronized byte[] encode(byte[] frame) {
+            if (deflater == null || frame.length < threshold || Protocol.getInt(frame, 0) == Protocol.HELLO)
+                return frame;
+            long start = System.nanoTime();
+            deflater.setInput(frame);
+            int n = Protocol.HEADER_SIZE;
+            while (true) {
+                n += deflater.deflate(buffer, n, buffer.length - n, Deflater.SYNC_FLUSH);
+                // a full buffer may mean there is more output
+                if (n < buffer.length) break;
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            Protocol.putInt(buffer, 0, Protocol.COMPRESSED);
+            Protocol.putInt(buffer, 4, n - Protocol.HEADER_SIZE);
+            byte[] compressed = Arrays.copyOf(buffer, n);
+            if (metrics != null) metrics.compressed(frame.length, n, System.nanoTime() - start);
+            return compressed;
+        }
+
+        /**
+         * Frees the deflate stream once the connection is closed.
+         */
+        synchronized void end() {
+            if (deflater == null) return;
+            deflater.end();
+            deflater = null;
+        }
+    }
+
+    /**
+     * Decompresses the COMPRESSED frames one end receives. Used by the thread that reads the connection;
+     * the frame it decoded last is in type, len and payload.
+     */
+    static class Decoder {
+        private final int maxLen;
+        private final Metrics metrics;
+        private Inflater inflater = new Inflater();
+        private final byte[] header = new byte[Protocol.HEADER_SIZE];
+        int type;
+        int len;
+        /** The payload of the decoded frame; overwritten by the next call to decode. */
+        byte[] payload = new byte[1024];
+
+        /**
+         * @param maxLen The longest payload a decoded frame may have: MAX_CLIENT_FRAME_SIZE on a server and
+         *        MAX_FRAME_SIZE on a client.
+         * @param metrics Counts the bytes and time spent decompressing, or null.
+         */
+        Decoder(int maxLen, Metrics metrics) {
+            this.maxLen = maxLen;
+            this.metrics = metrics;
+        }
+
+        /**
+         * Decompresses the frame a COMPRESSED frame holds.
+         *
+         * @param buf The byte array containing the payload of the COMPRESSED frame.
+         * @param compressedLen The length of that payload.
+         * @throws IOException If the payload is not exactly one compressed frame or the decoder has ended.
+         */
+        synchronized void decode(byte[] buf, int compressedLen) throws IOException {
+            if (inflater == null) throw new IOException("Connection closed");
+            long start = System.nanoTime();
+            inflater.setInput(buf, 0, compressedLen);
+            try {
+                inflate(header, Protocol.HEADER_SIZE);
+                type = Protocol.getInt(header, 0);
+                len = Protocol.getInt(header, 4);
+                if (type == Protocol.COMPRESSED || len < 0 || len > maxLen)
+                    throw new IOException("Invalid compressed frame of type " + type + " and length " + len);
+                if (len > payload.length)
+                    payload = new byte[Math.max(len, payload.length * 2)];
+                inflate(payload, len);
+                // also consumes the marker of the sync flush
+                if (inflater.inflate(header, 0, 1) > 0 || !inflater.needsInput())
+                    throw new IOException("Compressed frame holds more than one frame");
+            } catch (DataFormatException e) {
+                throw new IOException("Malformed compressed frame: " + e.getMessage());
+            }
+            if (metrics != null)
+                metrics.decompressed(Protocol.HEADER_SIZE + len, Protocol.HEADER_SIZE + compressedLen,
+                        System.nanoTime() - start);
+        }
+
+        private void inflate(byte[] b, int n) throws DataFormatException, IOException {
+            int off = 0;
+            while (off < n) {
+                int k = inflater.inflate(b, off, n - off);
+                if (k == 0) throw new IOException("Compressed frame truncated");
+                off += k;
+            }
+        }
+
+        /**
+         * Frees the inflate stream once the connection is closed.
+         */
+        synchronized void end() {
+            if (inflater == null) return;
+            inflater.end();
+            inflater = null;
+        }
+    }
+
+    /**
+     * Compresses what a client writes to a blocking stream. Writes that are one whole frame, as from
+     * Protocol.writeFrame and Protocol.writeRegion, are encoded right away; anything else is collected
+     * until it makes up a whole frame.
+     */
+    static class Output extends FilterOutputStream {
+        private final Encoder encoder;
+        // the frame being collected from partial writes
+        private byte[] frame = new byte[64];
+        private int count;
+
+        /**
+         * @param out The stream of the connection.
+         * @param encoder The encoder of the connection.
+         */
+        Output(OutputStream out, Encoder encoder) {
+            super(out);
+            this.encoder = encoder;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (count == 0 && len >= Protocol.HEADER_SIZE
+                    && Protocol.HEADER_SIZE + Protocol.getInt(b, off + 4) == len) {
+                out.write(encoder.encode(off == 0 && len == b.length ? b : Arrays.copyOfRange(b, off, off + len)));
+                return;
+            }
+            while (len > 0) {
+                int n = Math.min(len, missing());
+                if (count + n > frame.length)
+                    frame = Arrays.copyOf(frame, Math.max(count + n, frame.length * 2));
+                System.arraycopy(b, off, frame, count, n);
+                count += n;
+                off += n;
+                len -= n;
+                if (missing() == 0) {
+                    out.write(encoder.encode(Arrays.copyOf(frame, count)));
+                    count = 0;
+                }
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        /**
+         * @return How many more bytes the frame being collected needs.
+         * @throws IOException If its header has an invalid length.
+         */
+        private int missing() throws IOException {
+            if (count < Protocol.HEADER_SIZE) return Protocol.HEADER_SIZE - count;
+            int len = Protocol.getInt(frame, 4);
+            if (len < 0 || len > Protocol.MAX_FRAME_SIZE)
+                throw new IOException("Invalid frame length " + len);
+            return Protocol.HEADER_SIZE + len - count;
+        }
+    }
+}
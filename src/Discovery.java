@@ -0,0 +1,213 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The Discovery class finds KidPaint servers for a client. A discovery request is broadcast and every reply
+ * that arrives within the timeout is collected, so all servers on the LAN are seen, not just the fastest one;
+ * the request is sent again if nobody answered. Each reply is timed, and choose() orders the servers
+ * by how many clients they have and then by round-trip time.
+ * The endpoint a client last connected to is kept in a small file, by default .kidpaint in the home directory
+ * or the file given by -Dkidpaint.endpointCache, so the next start can connect to it without a broadcast.
+ * All methods block and belong on a background thread.
+ */
+public class Discovery {
+    /** How long a TCP connect may take before the next server is tried. */
+    static final int CONNECT_TIMEOUT = 3000;
+    /** How long a server that accepted a connection may take to answer the handshake. */
+    static final int HANDSHAKE_TIMEOUT = 5000;
+
+    /**
+     * A server that answered a discovery request.
+     */
+    static class Endpoint {
+        String host;
+        int port;
+        /** The server's protocol version, 0 if it predates versioned replies. */
+        int version;
+        /** The number of connected clients, -1 if the server did not say. */
+        int clients = -1;
+        String[] rooms = new String[0];
+        /** The time from sending the request to receiving this reply, 0 for a cached endpoint. */
+        long rttNanos;
+
+        Endpoint(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s:%d (version %d, %d clients, %.1f ms)", host, port, version, clients, rttNanos / 1e6);
+        }
+    }
+
+    private Discovery() {
+    }
+
+    /**
+     * Broadcasts a discovery request and collects the replies.
+     *
+     * @param name The user name sent with the request.
+     * @param target The address to send the request to, usually 255.255.255.255.
+     * @param attempts How many times the request is sent when nobody answers.
+     * @param timeoutMillis How long to wait for replies after each request.
+     * @return The servers that answered, at most one entry per host and port; empty if none did.
+     * @throws IOException If the request cannot be sent.
+     */
+    static List<Endpoint> discover(String name, InetAddress target, int attempts, int timeoutMillis) throws IOException {
+        byte[] request = Protocol.discoveryRequest(name).getBytes(StandardCharsets.UTF_8);
+        Map<String, Endpoint> found = new LinkedHashMap<>();
+        DatagramPacket received = new DatagramPacket(new byte[1024], 1024);
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setBroadcast(true);
+            for (int attempt = 0; attempt < attempts && found.isEmpty(); attempt++) {
+                long sent = System.nanoTime();
+                long deadline = sent + timeoutMillis * 1000000L;
+                socket.send(new DatagramPacket(request, request.length, target, Protocol.DISCOVERY_PORT));
+                long left;
+                while ((left = deadline - System.nanoTime()) > 0) {
+                    socket.setSoTimeout((int) Math.max(1, left / 1000000L));
+                    try {
+                        socket.receive(received);
+                    } catch (SocketTimeoutException e) {
+                        break;
+                    }
+                    String content = new String(received.getData(), 0, received.getLength(), StandardCharsets.UTF_8);
+                    Endpoint endpoint = parseReply(content, received.getAddress().getHostAddress());
+                    if (endpoint == null) continue;
+                    endpoint.rttNanos = System.nanoTime() - sent;
+                    found.putIfAbsent(endpoint.host + ":" + endpoint.port, endpoint);
+                }
+            }
+        }
+        return new ArrayList<>(found.values());
+    }
+
+    /**
+     * Reads a discovery reply, either a versioned one (see Protocol.discoveryReply) or an older server's bare port.
+     *
+     * @param reply The text of the reply.
+     * @param host The address the reply came from.
+     * @return The endpoint, or null if the reply cannot be read.
+     */
+    static Endpoint parseReply(String reply, String host) {
+        reply = reply.trim();
+        try {
+            if (!reply.startsWith(Protocol.DISCOVERY_PREFIX)) return new Endpoint(host, Integer.parseInt(reply));
+            String[] fields = reply.split(" ");
+            Endpoint endpoint = new Endpoint(host, 0);
+            endpoint.version = Integer.parseInt(fields[0].substring(Protocol.DISCOVERY_PREFIX.length()));
+            for (int i = 1; i < fields.length; i++) {
+                int eq = fields[i].indexOf('=');
+                if (eq < 0) continue;
+                String value = fields[i].substring(eq + 1);
+                switch (fields[i].substring(0, eq)) {
+                    case "port":
+                        endpoint.port = Integer.parseInt(value);
+                        break;
+                    case "clients":
+                        endpoint.clients = Integer.parseInt(value);
+                        break;
+                    case "rooms":
+                        endpoint.rooms = value.isEmpty() ? new String[0] : value.split(",");
+                        for (int r = 0; r < endpoint.rooms.length; r++) {
+                            endpoint.rooms[r] = URLDecoder.decode(endpoint.rooms[r], "UTF-8");
+                        }
+                        break;
+                }
+            }
+            return endpoint.port > 0 ? endpoint : null;
+        } catch (IllegalArgumentException | UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Orders servers from most to least preferable: fewest clients first, servers that did not report
+     * their load after all that did, and the lowest round-trip time among equally loaded ones.
+     *
+     * @param endpoints The servers; sorted in place.
+     * @return The same list.
+     */
+    static List<Endpoint> choose(List<Endpoint> endpoints) {
+        endpoints.sort(Comparator.<Endpoint>comparingInt(e -> e.clients < 0 ? Integer.MAX_VALUE : e.clients)
+                .thenComparingLong(e -> e.rttNanos));
+        return endpoints;
+    }
+
+    /**
+     * Opens a TCP connection to a server, giving up after CONNECT_TIMEOUT milliseconds.
+     *
+     * @param host The host of the server.
+     * @param port The port of the server.
+     * @return The connected socket; no handshake has been done yet.
+     * @throws IOException If the server cannot be reached.
+     */
+    static Socket open(String host, int port) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    /**
+     * @return The endpoint last passed to remember(), or null if there is none.
+     */
+    static Endpoint cached() {
+        File file = cacheFile();
+        if (!file.isFile()) return null;
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            props.load(in);
+            String host = props.getProperty("host");
+            int port = Integer.parseInt(props.getProperty("port", ""));
+            return host == null ? null : new Endpoint(host, port);
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stores an endpoint for the next start. Failing to store it only costs a broadcast next time.
+     *
+     * @param endpoint The endpoint that was connected to.
+     */
+    static void remember(Endpoint endpoint) {
+        Properties props = new Properties();
+        props.setProperty("host", endpoint.host);
+        props.setProperty("port", String.valueOf(endpoint.port));
+        try (OutputStream out = new FileOutputStream(cacheFile())) {
+            props.store(out, "last KidPaint server");
+        } catch (IOException e) {
+            System.err.println("Cannot cache the server endpoint: " + e.getMessage());
+        }
+    }
+
+    private static File cacheFile() {
+        String path = System.getProperty("kidpaint.endpointCache");
+        return path != null ? new File(path) : new File(System.getProperty("user.home"), ".kidpaint");
+    }
+}
@@ -0,0 +1,131 @@
+import java.util.Arrays;
+
+/**
+ * The FloodFill class fills the area of same-colored cells connected to a seed cell, going up, down, left and right.
+ * It works on whole horizontal spans: each span is filled in one pass and only the rows directly above and below
+ * it are searched for further spans, so every cell is looked at a small constant number of times and nothing is
+ * allocated per cell. The filled spans are kept as (col, row, length) triples and can be encoded as a REGION payload.
+ * An instance reuses its arrays from one fill to the next; it is not thread-safe.
+ */
+public class FloodFill {
+    // filled spans as (col, row, length)
+    private int[] spans = new int[3 * 64];
+    private int spanCount;
+    private int cells;
+    private int color;
+    // pending scans as (x1, x2, row, direction)
+    private int[] stack = new int[4 * 64];
+    private int top;
+
+    private TiledCanvas canvas;
+    private int target;
+
+    /**
+     * Fills the area around a cell with a color.
+     *
+     * @param canvas The canvas to fill on.
+     * @param col The column of the seed cell.
+     * @param row The row of the seed cell.
+     * @param color The new color.
+     * @return The number of cells that were filled; 0 if the seed is outside the canvas or already has the color.
+     */
+    int fill(TiledCanvas canvas, int col, int row, int color) {
+        this.canvas = canvas;
+        this.color = color;
+        spanCount = 0;
+        cells = 0;
+        top = 0;
+        if (!canvas.contains(col, row)) return 0;
+        target = canvas.get(col, row);
+        if (target == color) return 0;
+
+        push(col, col, row, 1);
+        push(col, col, row - 1, -1);
+        while (top > 0) {
+            top -= 4;
+            int x1 = stack[top];
+            int x2 = stack[top + 1];
+            int y = stack[top + 2];
+            int dy = stack[top + 3];
+            int x = x1;
+            if (inside(x, y)) {
+                x -= canvas.runLength(x - 1, y, target, -1);
+                if (x < x1) push(x, x1 - 1, y - dy, -dy);
+            }
+            while (x1 <= x2) {
+                x1 += canvas.runLength(x1, y, target, 1);
+                if (x1 > x) {
+                    // the span also covers the cells found left of the scan, which are filled only now
+                    canvas.setRun(x, y, x1 - x, color);
+                    addSpan(x, y, x1 - x);
+                    push(x, x1 - 1, y + dy, dy);
+                }
+                if (x1 - 1 > x2) push(x2 + 1, x1 - 1, y - dy, -dy);
+                x1++;
+                while (x1 < x2 && !inside(x1, y)) x1++;
+                x = x1;
+            }
+        }
+        this.canvas = null;
+        return cells;
+    }
+
+    /**
+     * @return The number of spans filled by the last fill.
+     */
+    int spanCount() {
+        return spanCount;
+    }
+
+    /**
+     * Encodes the spans filled by the last fill as a REGION payload.
+     *
+     * @return The payload; a region without runs if nothing was filled.
+     */
+    byte[] encode() {
+        byte[] buf = new byte[4 + spanCount * Region.RUN_SIZE];
+        Protocol.putInt(buf, 0, spanCount);
+        int off = 4;
+        for (int i = 0; i < spanCount * 3; i += 3) {
+            Protocol.putShort(buf, off, spans[i]);
+            Protocol.putShort(buf, off + 2, spans[i + 1]);
+            Protocol.putShort(buf, off + 4, spans[i + 2]);
+            Protocol.putInt(buf, off + 6, color);
+            off += Region.RUN_SIZE;
+        }
+        return buf;
+    }
+
+    /**
+     * Hands every span filled by the last fill to the visitor.
+     *
+     * @param visitor The visitor receiving the spans, with the color they were filled with.
+     */
+    void forEachSpan(Region.RunVisitor visitor) {
+        for (int i = 0; i < spanCount * 3; i += 3) {
+            visitor.run(spans[i], spans[i + 1], spans[i + 2], color);
+        }
+    }
+
+    private boolean inside(int col, int row) {
+        return canvas.contains(col, row) && canvas.get(col, row) == target;
+    }
+
+    private void addSpan(int col, int row, int length) {
+        if (spanCount * 3 == spans.length) spans = Arrays.copyOf(spans, spans.length * 2);
+        spans[spanCount * 3] = col;
+        spans[spanCount * 3 + 1] = row;
+        spans[spanCount * 3 + 2] = length;
+        spanCount++;
+        cells += length;
+    }
+
+    private void push(int x1, int x2, int row, int dy) {
+        if (top == stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+        stack[top] = x1;
+        stack[top + 1] = x2;
+        stack[top + 2] = row;
+        stack[top + 3] = dy;
+        top += 4;
+    }
+}
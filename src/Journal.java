@@ -0,0 +1,283 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * The Journal class makes the canvas of one room durable.
+ * Every applied drawing frame is appended to an in-memory buffer, and a committer writes the buffer to
+ * log-N.bin and fsyncs it once per commit interval (group commit), so at most one interval of updates
+ * can be lost. Once the log grows past maxLogBytes the canvas is written to snapshot-(N+1).bin and a new
+ * log is started, which bounds both the disk usage and the recovery time.
+ * A log record is the frame (int type, int length, payload) followed by the CRC32 of those bytes.
+ */
+class Journal {
+    private final File dir;
+    private final long maxLogBytes;
+    private final ScheduledFuture<?> task;
+
+    // guarded by this: updates not yet handed to the committer
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private Rotation rotation;
+    private long logBytes;
+    private int generation;
+
+    // only touched by the committer, or under commitLock
+    private final Object commitLock = new Object();
+    private FileChannel log;
+
+    private long appendedBytes;
+    private long writtenBytes;
+    private long recoveryMillis;
+
+    /**
+     * A snapshot taken at the end of one log, waiting to be written by the committer.
+     */
+    private static class Rotation {
+        byte[] tail;
+        byte[] snapshot;
+        int generation;
+    }
+
+    /**
+     * Opens the journal of a room. Call recover() before appending.
+     *
+     * @param dir The directory holding the room's snapshots and logs.
+     * @param timer The executor running the group commits.
+     * @param commitMillis The group commit interval in milliseconds.
+     * @param maxLogBytes The log size after which a snapshot is taken.
+     * @throws IOException If the directory cannot be created.
+     */
+    Journal(File dir, ScheduledExecutorService timer, int commitMillis, long maxLogBytes) throws IOException {
+        this.dir = dir;
+        this.maxLogBytes = maxLogBytes;
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Unable to create " + dir);
+        task = timer.scheduleWithFixedDelay(() -> {
+            try {
+                commit();
+            } catch (IOException e) {
+                System.err.println("Journal commit failed in " + dir + ": " + e.getMessage());
+            }
+        }, commitMillis, commitMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Rebuilds the canvas from the newest snapshot and the log written after it.
+     *
+     * @param width The width of a canvas that has no snapshot yet.
+     * @param height The height of a canvas that has no snapshot yet.
+     * @return The recovered canvas.
+     * @throws IOException If an I/O error occurs.
+     */
+    TiledCanvas recover(int width, int height) throws IOException {
+        long start = System.nanoTime();
+        TiledCanvas canvas = null;
+        int latest = -1;
+        File[] files = dir.listFiles();
+        if (files == null) files = new File[0];
+        for (File f : files) {
+            int n = generationOf(f, "snapshot-");
+            if (n > latest) {
+                try {
+                    byte[] bytes = Files.readAllBytes(f.toPath());
+                    canvas = Snapshot.decode(bytes, bytes.length);
+                    latest = n;
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Ignoring damaged snapshot " + f);
+                }
+            }
+        }
+        generation = Math.max(latest, 0);
+        if (canvas == null) canvas = new TiledCanvas(width, height);
+
+        int records = 0;
+        File logFile = logFile(generation);
+        if (logFile.exists()) {
+            byte[] bytes = Files.readAllBytes(logFile.toPath());
+            int valid = 0;
+            CRC32 crc = new CRC32();
+            while (valid + Protocol.HEADER_SIZE + 4 <= bytes.length) {
+                int type = Protocol.getInt(bytes, valid);
+                int len = Protocol.getInt(bytes, valid + 4);
+                if (len < 0 || valid + Protocol.HEADER_SIZE + len + 4 > bytes.length) break;
+                crc.reset();
+                crc.update(bytes, valid, Protocol.HEADER_SIZE + len);
+                if ((int) crc.getValue() != Protocol.getInt(bytes, valid + Protocol.HEADER_SIZE + len)) break;
+                byte[] payload = new byte[len];
+                System.arraycopy(bytes, valid + Protocol.HEADER_SIZE, payload, 0, len);
+                apply(canvas, type, payload, len);
+                valid += Protocol.HEADER_SIZE + len + 4;
+                records++;
+            }
+            logBytes = valid;
+            if (valid < bytes.length)
+                System.err.printf("Dropped %d bytes of a torn write at the end of %s\n", bytes.length - valid, logFile);
+        }
+        log = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        log.truncate(logBytes);
+        log.position(logBytes);
+
+        // anything older than the snapshot we recovered from is no longer needed
+        for (File f : files) {
+            int n = Math.max(generationOf(f, "snapshot-"), generationOf(f, "log-"));
+            if (n >= 0 && n < generation) f.delete();
+        }
+        canvas.takeDirtyTiles();
+        recoveryMillis = (System.nanoTime() - start) / 1000000;
+        System.out.printf("Recovered %s from snapshot %d and %d log records (%d bytes) in %d ms.\n",
+                dir.getName(), generation, records, logBytes, recoveryMillis);
+        return canvas;
+    }
+
+    /**
+     * Appends an applied drawing frame. The caller holds the room's canvas lock, which keeps the
+     * log in the same order as the canvas, and passes the canvas so a snapshot can be taken when the log is full.
+     *
+     * @param type The type of the frame.
+     * @param payload The byte array containing the payload.
+     * @param len The length of the payload.
+     * @param canvas The canvas the frame has been applied to.
+     */
+    synchronized void append(int type, byte[] payload, int len, TiledCanvas canvas) {
+        byte[] record = new byte[Protocol.HEADER_SIZE + len + 4];
+        Protocol.putInt(record, 0, type);
+        Protocol.putInt(record, 4, len);
+        System.arraycopy(payload, 0, record, Protocol.HEADER_SIZE, len);
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, Protocol.HEADER_SIZE + len);
+        Protocol.putInt(record, Protocol.HEADER_SIZE + len, (int) crc.getValue());
+        pending.write(record, 0, record.length);
+        logBytes += record.length;
+        appendedBytes += Protocol.HEADER_SIZE + len;
+
+        if (logBytes >= maxLogBytes && rotation == null) {
+            rotation = new Rotation();
+            rotation.tail = pending.toByteArray();
+            rotation.snapshot = Snapshot.encode(canvas);
+            rotation.generation = ++generation;
+            pending = new ByteArrayOutputStream();
+            logBytes = 0;
+        }
+    }
+
+    /**
+     * Writes and fsyncs everything appended since the last commit, and finishes a pending snapshot.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    void commit() throws IOException {
+        synchronized (commitLock) {
+            if (log == null) return;
+            byte[] batch;
+            Rotation r;
+            synchronized (this) {
+                batch = pending.toByteArray();
+                pending.reset();
+                r = rotation;
+                rotation = null;
+            }
+            if (r != null) {
+                // finish the old log, then make the snapshot durable before starting the next log
+                write(r.tail);
+                File tmp = new File(dir, "snapshot.tmp");
+                try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    out.write(ByteBuffer.wrap(r.snapshot));
+                    out.force(true);
+                }
+                synchronized (this) {
+                    writtenBytes += r.snapshot.length;
+                }
+                Files.move(tmp.toPath(), new File(dir, "snapshot-" + r.generation + ".bin").toPath(),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                log.close();
+                log = FileChannel.open(logFile(r.generation).toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                logFile(r.generation - 1).delete();
+                new File(dir, "snapshot-" + (r.generation - 1) + ".bin").delete();
+            }
+            write(batch);
+        }
+    }
+
+    /**
+     * Stops the group commits and makes everything appended so far durable.
+     */
+    void close() {
+        task.cancel(false);
+        try {
+            commit();
+        } catch (IOException e) {
+            System.err.println("Journal commit failed in " + dir + ": " + e.getMessage());
+        }
+        synchronized (commitLock) {
+            try {
+                if (log != null) log.close();
+            } catch (IOException e) {
+            }
+            log = null;
+        }
+        System.out.printf("Closed journal %s: write amplification %.2f, last recovery %d ms.\n",
+                dir.getName(), writeAmplification(), recoveryMillis);
+    }
+
+    /**
+     * @return Bytes written to disk (log records and snapshots) per byte of drawing frames appended.
+     */
+    synchronized double writeAmplification() {
+        return appendedBytes == 0 ? 0 : (double) writtenBytes / appendedBytes;
+    }
+
+    long recoveryMillis() {
+        return recoveryMillis;
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        if (bytes.length == 0) return;
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        while (buf.hasRemaining()) {
+            log.write(buf);
+        }
+        log.force(false);
+        synchronized (this) {
+            writtenBytes += bytes.length;
+        }
+    }
+
+    private File logFile(int generation) {
+        return new File(dir, "log-" + generation + ".bin");
+    }
+
+    private static int generationOf(File f, String prefix) {
+        String name = f.getName();
+        if (!name.startsWith(prefix) || !name.endsWith(".bin")) return -1;
+        try {
+            return Integer.parseInt(name.substring(prefix.length(), name.length() - 4));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void apply(TiledCanvas canvas, int type, byte[] payload, int len) {
+        try {
+            if (type == Protocol.PIXEL && len >= Protocol.PIXEL_SIZE) {
+                int col = Protocol.pixelCol(payload, 0);
+                int row = Protocol.pixelRow(payload, 0);
+                if (canvas.contains(col, row)) canvas.set(col, row, Protocol.pixelColor(payload, 0));
+            } else if (type == Protocol.REGION) {
+                Region.apply(payload, len, canvas);
+            }
+        } catch (IllegalArgumentException e) {
+            // a record that was valid when it was logged; skip it rather than lose the rest
+        }
+    }
+}
@@ -0,0 +1,428 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The LoadBot class is a headless client for load testing a server. It connects a population of simulated users,
+ * each of which draws strokes one pixel at a time, fills areas and chats at the configured rates, and reports
+ * how long the server takes to echo every user's own updates back to it, how long joining takes and how many
+ * frames went each way. It needs no display, e.g.
+ * "java LoadBot --port=8080 --users=200 --rooms=4 --duration=60 --stroke-rate=20".
+ * Options are given as --name=value:
+ * host, port, users, rooms (users are spread over rooms named load-0, load-1, ...), duration in seconds,
+ * ramp (milliseconds between two joins), stroke-rate (pixels per second per user), fill-rate and chat-rate
+ * (per second per user, fractions allowed) and threads (for sending).
+ */
+public class LoadBot {
+    String host = "127.0.0.1";
+    int port = 8080;
+    int users = 50;
+    int rooms = 1;
+    int durationSeconds = 30;
+    int rampMillis = 10;
+    double strokeRate = 10;
+    double fillRate = 0.1;
+    double chatRate = 0.2;
+    int threads = 2;
+
+    private final AtomicLong framesIn = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong framesOut = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Latency samples in nanoseconds, appended by one thread and read once the run is over.
+     */
+    static class Samples {
+        private long[] values = new long[256];
+        private int size;
+
+        synchronized void add(long nanos) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = nanos;
+        }
+
+        synchronized void addAll(Samples other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.values[i]);
+            }
+        }
+
+        /**
+         * @return The samples in milliseconds at p50, p99, p99.9 and the maximum, or a note that there are none.
+         */
+        synchronized String summary() {
+            if (size == 0) return "no samples";
+            long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            return String.format("n=%d p50=%.2f p99=%.2f p999=%.2f max=%.2f ms", size, at(sorted, 0.5) / 1e6,
+                    at(sorted, 0.99) / 1e6, at(sorted, 0.999) / 1e6, sorted[size - 1] / 1e6);
+        }
+
+        private static long at(long[] sorted, double q) {
+            return sorted[Math.min(sorted.length - 1, (int) Math.ceil(q * sorted.length) - 1)];
+        }
+    }
+
+    /**
+     * One simulated user. Its updates carry its id in their color, so it can tell its own echoes apart
+     * from everyone else's; the reader thread matches them against the send times.
+     */
+    class Bot {
+        final int id;
+        final String name;
+        final String room;
+        DataOutputStream out;
+        private Socket socket;
+        private volatile int width;
+        private volatile int height;
+        // the pen position and the numbers that make updates unique; guarded by the bot's lock
+        private int col;
+        private int row;
+        private int seq;
+        private int chatSeq;
+        // send times of updates not echoed yet, keyed by cell and color, or by the chat text
+        private final Map<Long, Long> pendingCells = new HashMap<>();
+        private final Map<String, Long> pendingChats = new HashMap<>();
+        final Samples pixelLatency = new Samples();
+        final Samples fillLatency = new Samples();
+        final Samples chatLatency = new Samples();
+        long joinNanos = -1;
+        private volatile boolean closed;
+
+        Bot(int id) {
+            this.id = id;
+            this.name = "bot" + id;
+            this.room = "load-" + (id % rooms);
+        }
+
+        /**
+         * Connects and waits until the snapshot of the room has arrived.
+         */
+        void join() throws IOException {
+            long start = System.nanoTime();
+            socket = Discovery.open(host, port);
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(socket.getOutputStream());
+            Protocol.clientHandshake(in, out, name, room);
+            byte[] buffer = new byte[1024];
+            while (true) {
+                int type = in.readInt();
+                int len = in.readInt();
+                buffer = Protocol.readPayload(in, buffer, len);
+                count(len);
+                if (type == Protocol.SNAPSHOT) {
+                    TiledCanvas canvas = Snapshot.decode(buffer, len);
+                    width = canvas.width();
+                    height = canvas.height();
+                    break;
+                }
+            }
+            joinNanos = System.nanoTime() - start;
+            col = ThreadLocalRandom.current().nextInt(width);
+            row = ThreadLocalRandom.current().nextInt(height);
+            Thread reader = new Thread(() -> read(in), name + "-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private int nextColor() {
+            seq = (seq + 1) & 0xFFF;
+            return 0xFF000000 | (id & 0xFFF) << 12 | seq;
+        }
+
+        /** Moves the pen one cell in a random direction and draws there. */
+        void stroke() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            byte[] payload = new byte[Protocol.PIXEL_SIZE];
+            synchronized (this) {
+                col = Math.max(0, Math.min(width - 1, col + random.nextInt(3) - 1));
+                row = Math.max(0, Math.min(height - 1, row + random.nextInt(3) - 1));
+                int color = nextColor();
+                Protocol.encodePixel(payload, 0, col, row, color);
+                pendingCells.put(key(col, row, color), System.nanoTime());
+            }
+            write(Protocol.PIXEL, payload);
+        }
+
+        /** Fills the area around a random cell. */
+        void fill() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int c = random.nextInt(width);
+            int r = random.nextInt(height);
+            byte[] payload = new byte[Protocol.PIXEL_SIZE];
+            synchronized (this) {
+                int color = nextColor();
+                Protocol.encodePixel(payload, 0, c, r, color);
+                // the fill comes back as REGION frames; the seed cell is matched like a pixel but counted as a fill
+                pendingCells.put(~key(c, r, color), System.nanoTime());
+            }
+            write(Protocol.FILL, payload);
+        }
+
+        void chat() {
+            String text;
+            synchronized (this) {
+                text = name + ": message " + chatSeq++;
+                pendingChats.put(text, System.nanoTime());
+            }
+            write(Protocol.CHAT, text.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void write(int type, byte[] payload) {
+            if (closed) return;
+            try {
+                Protocol.writeFrame(out, type, payload, payload.length);
+                framesOut.incrementAndGet();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void read(DataInputStream in) {
+            byte[] buffer = new byte[1024];
+            try {
+                while (true) {
+                    int type = in.readInt();
+                    int len = in.readInt();
+                    buffer = Protocol.readPayload(in, buffer, len);
+                    count(len);
+                    long now = System.nanoTime();
+                    if (type == Protocol.PIXEL && len >= Protocol.PIXEL_SIZE) {
+                        echoed(Protocol.pixelCol(buffer, 0), Protocol.pixelRow(buffer, 0), Protocol.pixelColor(buffer, 0),
+                                now);
+                    } else if (type == Protocol.REGION) {
+                        Region.decode(buffer, len, (c, r, length, color) -> {
+                            // only cells of our own color can be ours
+                            if ((color >>> 12 & 0xFFF) != (id & 0xFFF)) return;
+                            for (int x = c; x < c + length; x++) {
+                                echoed(x, r, color, now);
+                            }
+                        });
+                    } else if (type == Protocol.CHAT) {
+                        String text = new String(buffer, 0, len, StandardCharsets.UTF_8);
+                        Long sent;
+                        synchronized (this) {
+                            sent = pendingChats.remove(text);
+                        }
+                        if (sent != null) chatLatency.add(now - sent);
+                    }
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                fail(e);
+            }
+        }
+
+        private void echoed(int c, int r, int color, long now) {
+            long key = key(c, r, color);
+            Long sent;
+            Samples samples = pixelLatency;
+            synchronized (this) {
+                sent = pendingCells.remove(key);
+                if (sent == null) {
+                    sent = pendingCells.remove(~key);
+                    samples = fillLatency;
+                }
+            }
+            if (sent != null) samples.add(now - sent);
+        }
+
+        private void count(int len) {
+            framesIn.incrementAndGet();
+            bytesIn.addAndGet(Protocol.HEADER_SIZE + len);
+        }
+
+        private void fail(Exception e) {
+            if (closed) return;
+            closed = true;
+            failures.incrementAndGet();
+            System.err.printf("%s disconnected: %s\n", name, e.getMessage());
+            close();
+        }
+
+        synchronized int unanswered() {
+            return pendingCells.size() + pendingChats.size();
+        }
+
+        void close() {
+            closed = true;
+            try {
+                if (socket != null) socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private static long key(int col, int row, int color) {
+        return (long) col << 48 | (long) row << 32 | (color & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Connects the users, lets them work for the configured duration and prints the report.
+     */
+    void run() throws InterruptedException {
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(threads);
+        List<Bot> bots = new ArrayList<>();
+        Samples joins = new Samples();
+        System.out.printf("Connecting %d users to %s:%d in %d rooms...\n", users, host, port, rooms);
+        for (int i = 0; i < users; i++) {
+            Bot bot = new Bot(i);
+            try {
+                bot.join();
+            } catch (IOException | IllegalArgumentException e) {
+                failures.incrementAndGet();
+                System.err.printf("%s could not join: %s\n", bot.name, e.getMessage());
+                continue;
+            }
+            joins.add(bot.joinNanos);
+            bots.add(bot);
+            schedule(scheduler, bot::stroke, strokeRate);
+            schedule(scheduler, bot::fill, fillRate);
+            schedule(scheduler, bot::chat, chatRate);
+            if (rampMillis > 0) Thread.sleep(rampMillis);
+        }
+
+        long start = System.nanoTime();
+        long sentBefore = framesOut.get();
+        long receivedBefore = framesIn.get();
+        long bytesBefore = bytesIn.get();
+        for (int s = 1; s <= durationSeconds; s++) {
+            Thread.sleep(1000);
+            if (s % 5 == 0 || s == durationSeconds)
+                System.out.printf("%ds: sent %d frames, received %d frames\n", s, framesOut.get(), framesIn.get());
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long sent = framesOut.get() - sentBefore;
+        long received = framesIn.get() - receivedBefore;
+        long bytes = bytesIn.get() - bytesBefore;
+        scheduler.shutdownNow();
+        // give the last echoes a moment
+        Thread.sleep(500);
+
+        Samples pixels = new Samples();
+        Samples fills = new Samples();
+        Samples chats = new Samples();
+        int unanswered = 0;
+        for (Bot bot : bots) {
+            pixels.addAll(bot.pixelLatency);
+            fills.addAll(bot.fillLatency);
+            chats.addAll(bot.chatLatency);
+            unanswered += bot.unanswered();
+            bot.close();
+        }
+        System.out.printf("Users: %d connected, %d failed\n", bots.size(), failures.get());
+        System.out.println("Join:          " + joins.summary());
+        System.out.println("Pixel echo:    " + pixels.summary());
+        System.out.println("Fill echo:     " + fills.summary());
+        System.out.println("Chat echo:     " + chats.summary());
+        System.out.printf("Throughput:    %.0f frames/s sent, %.0f frames/s and %.2f MB/s received\n", sent / seconds,
+                received / seconds, bytes / seconds / 1e6);
+        // merged or overwritten by the server's batching, or still in flight when the run ended
+        System.out.printf("Not echoed:    %d updates\n", unanswered);
+    }
+
+    /**
+     * Runs a task at a rate with random gaps, so the users do not act in lockstep.
+     */
+    private static void schedule(ScheduledExecutorService scheduler, Runnable task, double perSecond) {
+        if (perSecond <= 0) return;
+        long meanNanos = (long) (1e9 / perSecond);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                task.run();
+                // exponential gaps with the configured mean
+                long gap = (long) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) * meanNanos);
+                if (!scheduler.isShutdown())
+                    scheduler.schedule(this, gap, TimeUnit.NANOSECONDS);
+            }
+        }, ThreadLocalRandom.current().nextLong(meanNanos + 1), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Parses the command line arguments into a LoadBot.
+     *
+     * @param args The command line arguments.
+     * @return The load generator, with defaults for everything not given.
+     * @throws IllegalArgumentException If an option is unknown or has an invalid value.
+     */
+    static LoadBot parse(String[] args) {
+        LoadBot bot = new LoadBot();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0)
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            String name = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            switch (name) {
+                case "host":
+                    bot.host = value;
+                    break;
+                case "port":
+                    bot.port = Integer.parseInt(value);
+                    break;
+                case "users":
+                    bot.users = Integer.parseInt(value);
+                    break;
+                case "rooms":
+                    bot.rooms = Integer.parseInt(value);
+                    if (bot.rooms < 1)
+                        throw new IllegalArgumentException("rooms must be at least 1");
+                    break;
+                case "duration":
+                    bot.durationSeconds = Integer.parseInt(value);
+                    break;
+                case "ramp":
+                    bot.rampMillis = Integer.parseInt(value);
+                    break;
+                case "stroke-rate":
+                    bot.strokeRate = Double.parseDouble(value);
+                    break;
+                case "fill-rate":
+                    bot.fillRate = Double.parseDouble(value);
+                    break;
+                case "chat-rate":
+                    bot.chatRate = Double.parseDouble(value);
+                    break;
+                case "threads":
+                    bot.threads = Integer.parseInt(value);
+                    if (bot.threads < 1)
+                        throw new IllegalArgumentException("threads must be at least 1");
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        return bot;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        LoadBot bot;
+        try {
+            bot = parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java LoadBot [--host=127.0.0.1] [--port=8080] [--users=N] [--rooms=N]"
+                    + " [--duration=seconds] [--ramp=ms] [--stroke-rate=per-second] [--fill-rate=per-second]"
+                    + " [--chat-rate=per-second] [--threads=N]");
+            return;
+        }
+        bot.run();
+        // a failed connection fails the run, so scripts can tell
+        System.exit(bot.failures.get() > 0 ? 1 : 0);
+    }
+}
@@ -1,15 +1,17 @@
 import java.awt.*;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 import javax.swing.*;
 
 public class LoginUI extends JFrame {
     String serverIp;
     int serverPort;
+    private static final int DISCOVERY_ATTEMPTS = 3;
+    // milliseconds to wait for replies after each discovery request
+    private static final int DISCOVERY_TIMEOUT = 500;
 
     /**
      * The LoginUI class represents the graphical user interface for the login page.
@@ -17,7 +19,7 @@ public class LoginUI extends JFrame {
      */
     public LoginUI() {
         this.setTitle("Login Page");
-        this.setSize(200, 150);
+        this.setSize(200, 200);
         this.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
 
         Container container = this.getContentPane();
@@ -28,10 +30,14 @@ public class LoginUI extends JFrame {
 
         Label label = new Label("Please input your name:");
         JTextField usernameTextField = new JTextField(10);
+        Label roomLabel = new Label("Room to join or create:");
+        JTextField roomTextField = new JTextField(Protocol.DEFAULT_ROOM, 10);
         JButton submitButton = new JButton("Submit");
 
         submitPanel.add(label);
         submitPanel.add(usernameTextField);
+        submitPanel.add(roomLabel);
+        submitPanel.add(roomTextField);
         usernamePanel.add(submitButton);
 
         container.add(usernamePanel, BorderLayout.SOUTH);
@@ -41,51 +47,73 @@ public class LoginUI extends JFrame {
             String username = usernameTextField.getText();
 
             if (username.equals("")) username = "Anonymous";
+            String room = roomTextField.getText().trim();
+            if (room.equals("")) room = Protocol.DEFAULT_ROOM;
             submitButton.setEnabled(false);
-            try {
-                req(username);
-            } catch (IOException ex) {
-                ex.printStackTrace();
-            }
+            req(username, room, submitButton);
         });
     }
 
     /**
-     * Sends a request with the given username to the server and establishes a connection.
+     * Finds a server in the background and establishes a connection to it, handshake included. The server
+     * connected to last time is tried first; otherwise a request with the given username is broadcast, and the
+     * servers that answer are tried from the least loaded and closest one on. A server is only remembered for
+     * the next start once it completed the handshake.
      * 
      * @param username the username to be sent to the server
-     * @throws UnknownHostException if the IP address of the server is unknown
-     * @throws IOException if an I/O error occurs while sending or receiving data
+     * @param room the room to join, which the server creates if it does not exist yet
+     * @param submitButton the button to enable again if no server can be reached
      */
-    void req(String username) throws UnknownHostException, IOException {
-        DatagramSocket socket = new DatagramSocket();
-        DatagramPacket packet = new DatagramPacket(username.getBytes(), username.length(),
-                InetAddress.getByName("255.255.255.255"), 5555);
-        socket.send(packet);
-        DatagramPacket received = new DatagramPacket(new byte[1024], 1024);
-
-        while (true) {
-            System.out.println("Listening...");
-
-            socket.receive(received);
-            String content = new String(received.getData(), 0, received.getLength());
-
-            if (content != null) {
-                serverIp = received.getAddress().toString();
-                serverIp = serverIp.substring(1);   // remove the first "/" of the address string
-                serverPort = Integer.parseInt(content);
-                System.out.println("Server IP: " + serverIp);
-                System.out.println("Server Port: " + serverPort);
-
-                socket.close();
-                this.setVisible(false);
-
-                UI ui = UI.getInstance(serverIp, serverPort, username);
+    void req(String username, String room, JButton submitButton) {
+        new SwingWorker<UI.Connection, Void>() {
+            @Override
+            protected UI.Connection doInBackground() throws IOException {
+                Discovery.Endpoint cached = Discovery.cached();
+                if (cached != null) {
+                    try {
+                        return UI.handshake(Discovery.open(cached.host, cached.port), username, room, 0, 0);
+                    } catch (IOException e) {
+                        System.out.println("Cached server " + cached.host + ":" + cached.port + " unusable: " + e.getMessage());
+                    }
+                }
+                System.out.println("Listening...");
+                List<Discovery.Endpoint> servers = Discovery.choose(Discovery.discover(username,
+                        InetAddress.getByName("255.255.255.255"), DISCOVERY_ATTEMPTS, DISCOVERY_TIMEOUT));
+                for (Discovery.Endpoint server : servers) {
+                    System.out.println("Found server " + server);
+                    try {
+                        UI.Connection connection = UI.handshake(Discovery.open(server.host, server.port), username,
+                                room, 0, 0);
+                        Discovery.remember(server);
+                        return connection;
+                    } catch (IOException e) {
+                        System.out.println("Server " + server.host + ":" + server.port + " unusable: " + e.getMessage());
+                    }
+                }
+                throw new IOException(servers.isEmpty() ? "No server answered." : "No server could be reached.");
+            }
 
-                ui.setData(new int[50][50], 20);
-                ui.setVisible(true);
-                break;
+            @Override
+            protected void done() {
+                try {
+                    UI.Connection connection = get();
+                    serverIp = connection.socket.getInetAddress().getHostAddress();
+                    serverPort = connection.socket.getPort();
+                    System.out.println("Server IP: " + serverIp);
+                    System.out.println("Server Port: " + serverPort);
+
+                    UI ui = UI.getInstance(connection, username, room);
+                    setVisible(false);
+
+                    ui.setData(new TiledCanvas(50, 50), 20);
+                    ui.setVisible(true);
+                } catch (InterruptedException | ExecutionException e) {
+                    Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                    JOptionPane.showMessageDialog(LoginUI.this, "Unable to connect: " + cause.getMessage(),
+                            "Error", JOptionPane.ERROR_MESSAGE);
+                    submitButton.setEnabled(true);
+                }
             }
-        }
+        }.execute();
     }
 }
@@ -0,0 +1,378 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The Metrics class counts what a server does: frames and bytes in and out by frame type, clients joining and
+ * being dropped, slow-consumer queue overflows, and how long broadcasting, waiting for a room's lock and
+ * sending a joining client its drawing take, as well as how well and how fast compressed connections compress.
+ * Frame and byte counts by type are of the frames as they are without compression. Counters are LongAdders
+ * and timings go into histograms with power-of-two buckets, so recording costs a few nanoseconds and never blocks.
+ * The numbers are registered as an MBean and can be served as plain text in the Prometheus format over HTTP
+ * on the loopback interface; queue depths are read from the clients at that moment.
+ */
+public class Metrics implements MetricsMBean {
+    private static final String[] TYPE_NAMES = { "chat", "pixel", "hello", "region", "snapshot", "fill", "sync", "chat_history", "other" };
+
+    /**
+     * Counts timings in buckets whose upper bounds are powers of two nanoseconds.
+     */
+    static class Histogram {
+        final String name;
+        final String help;
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final LongAdder sum = new LongAdder();
+
+        Histogram(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        /**
+         * @param nanos The duration to record.
+         */
+        void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+            sum.add(nanos);
+        }
+
+        long count() {
+            long count = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                count += buckets.get(i);
+            }
+            return count;
+        }
+
+        /**
+         * @param q The quantile, between 0 and 1.
+         * @return An upper bound of the quantile in nanoseconds, 0 if nothing was recorded.
+         */
+        long quantile(double q) {
+            long target = (long) Math.ceil(count() * q);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= target && seen > 0) return i == 0 ? 0 : 1L << i;
+            }
+            return 0;
+        }
+
+        void print(StringBuilder sb) {
+            sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            sb.append("# TYPE ").append(name).append(" histogram\n");
+            int last = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                if (buckets.get(i) > 0) last = i;
+            }
+            long cumulative = 0;
+            for (int i = 0; i <= last; i++) {
+                cumulative += buckets.get(i);
+                sb.append(name).append("_bucket{le=\"").append(i == 0 ? 0 : (1L << i) / 1e9).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            sb.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+            sb.append(name).append("_sum ").append(sum.sum() / 1e9).append('\n');
+            sb.append(name).append("_count ").append(cumulative).append('\n');
+        }
+    }
+
+    private final Server server;
+    private final LongAdder[] framesIn = adders(TYPE_NAMES.length);
+    private final LongAdder[] bytesIn = adders(TYPE_NAMES.length);
+    private final LongAdder[] framesOut = adders(TYPE_NAMES.length);
+    private final LongAdder[] bytesOut = adders(TYPE_NAMES.length);
+    private final LongAdder joined = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder overflows = new LongAdder();
+    // bytes of the frames that were compressed, and of what they became on the wire
+    private final LongAdder compressedRaw = new LongAdder();
+    private final LongAdder compressedWire = new LongAdder();
+    private final LongAdder decompressedRaw = new LongAdder();
+    private final LongAdder decompressedWire = new LongAdder();
+    /** Time to queue one frame for every member of a room. */
+    final Histogram fanout = new Histogram("kidpaint_fanout_seconds", "Time to queue a frame for every member of a room.");
+    /** Time a received frame waits for its room's lock. */
+    final Histogram lockWait = new Histogram("kidpaint_lock_wait_seconds", "Time a received frame waits for its room's lock.");
+    /** Time to queue the drawing, or the frames it missed, for a joining client. */
+    final Histogram joinSnapshot = new Histogram("kidpaint_join_snapshot_seconds",
+            "Time to queue the drawing or the missed frames for a joining client.");
+    /** Time to compress one frame for one client. */
+    final Histogram compress = new Histogram("kidpaint_compress_seconds", "Time to compress a frame for one client.");
+    /** Time to decompress one frame from a client. */
+    final Histogram decompress = new Histogram("kidpaint_decompress_seconds", "Time to decompress a frame from a client.");
+
+    /**
+     * @param server The server whose rooms and clients are reported.
+     */
+    Metrics(Server server) {
+        this.server = server;
+    }
+
+    private static LongAdder[] adders(int n) {
+        LongAdder[] adders = new LongAdder[n];
+        for (int i = 0; i < n; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    private static int typeIndex(int type) {
+        return type >= Protocol.CHAT && type <= Protocol.CHAT_HISTORY ? type - Protocol.CHAT : TYPE_NAMES.length - 1;
+    }
+
+    /**
+     * Counts a frame received from a client.
+     *
+     * @param type The type of the frame.
+     * @param len The length of its payload.
+     */
+    void received(int type, int len) {
+        int i = typeIndex(type);
+        framesIn[i].increment();
+        bytesIn[i].add(Protocol.HEADER_SIZE + len);
+    }
+
+    /**
+     * Counts a frame taken off a client's queue to be written.
+     *
+     * @param frame The encoded frame, header included.
+     */
+    void sent(byte[] frame) {
+        int i = typeIndex(Protocol.getInt(frame, 0));
+        framesOut[i].increment();
+        bytesOut[i].add(frame.length);
+    }
+
+    void joined() {
+        joined.increment();
+    }
+
+    /** Counts a client disconnected by the slow-consumer policy. */
+    void dropped() {
+        dropped.increment();
+    }
+
+    void overflowed() {
+        overflows.increment();
+    }
+
+    /**
+     * Counts a frame compressed for a client.
+     *
+     * @param raw The size of the frame.
+     * @param wire The size of the COMPRESSED frame it became.
+     * @param nanos The time compressing took.
+     */
+    void compressed(int raw, int wire, long nanos) {
+        compressedRaw.add(raw);
+        compressedWire.add(wire);
+        compress.record(nanos);
+    }
+
+    /**
+     * Counts a compressed frame received from a client.
+     *
+     * @param raw The size of the frame it held.
+     * @param wire The size of the COMPRESSED frame.
+     * @param nanos The time decompressing took.
+     */
+    void decompressed(int raw, int wire, long nanos) {
+        decompressedRaw.add(raw);
+        decompressedWire.add(wire);
+        decompress.record(nanos);
+    }
+
+    /**
+     * Registers the metrics as the MBean kidpaint:type=Server,port=N.
+     */
+    void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("kidpaint:type=Server,port=" + server.config.port));
+        } catch (JMException e) {
+            System.err.println("Unable to register the metrics MBean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Serves the metrics at http://localhost:port/metrics.
+     *
+     * @param port The port to listen on.
+     * @throws IOException If the port cannot be bound.
+     */
+    void serve(int port) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        http.start();
+        System.out.println("Serving metrics on http://localhost:" + port + "/metrics");
+    }
+
+    @Override
+    public String scrape() {
+        StringBuilder sb = new StringBuilder(4096);
+        counters(sb, "kidpaint_frames_in_total", "Frames received from clients, after decompression.", framesIn);
+        counters(sb, "kidpaint_bytes_in_total", "Bytes received from clients after decompression, headers included.",
+                bytesIn);
+        counters(sb, "kidpaint_frames_out_total", "Frames written to clients, before compression.", framesOut);
+        counters(sb, "kidpaint_bytes_out_total", "Bytes written to clients before compression, headers included.",
+                bytesOut);
+        value(sb, "kidpaint_clients_joined_total", "counter", "Clients that joined a room.", joined.sum());
+        value(sb, "kidpaint_clients_dropped_total", "counter", "Clients disconnected for reading too slowly.", dropped.sum());
+        value(sb, "kidpaint_queue_overflows_total", "counter", "Times a client's outbound queue was full.", overflows.sum());
+        value(sb, "kidpaint_compress_in_bytes_total", "counter", "Bytes of the frames compressed for clients.",
+                compressedRaw.sum());
+        value(sb, "kidpaint_compress_out_bytes_total", "counter", "Bytes of the compressed frames written to clients.",
+                compressedWire.sum());
+        value(sb, "kidpaint_decompress_in_bytes_total", "counter", "Bytes of the compressed frames received from clients.",
+                decompressedWire.sum());
+        value(sb, "kidpaint_decompress_out_bytes_total", "counter", "Bytes of the frames decompressed from clients.",
+                decompressedRaw.sum());
+
+        List<String> depths = new ArrayList<>();
+        int clients = 0;
+        int rooms;
+        synchronized (server.rooms) {
+            rooms = server.rooms.size();
+            for (Room room : server.rooms.values()) {
+                for (Client client : room.members()) {
+                    clients++;
+                    depths.add("kidpaint_client_queue_depth{room=\"" + escape(room.name) + "\",client=\""
+                            + escape(String.valueOf(client.name)) + "\"} " + client.queue.size());
+                }
+            }
+        }
+        value(sb, "kidpaint_rooms", "gauge", "Open rooms.", rooms);
+        value(sb, "kidpaint_clients", "gauge", "Connected clients.", clients);
+        sb.append("# HELP kidpaint_client_queue_depth Frames waiting to be written to a client.\n");
+        sb.append("# TYPE kidpaint_client_queue_depth gauge\n");
+        for (String depth : depths) {
+            sb.append(depth).append('\n');
+        }
+        fanout.print(sb);
+        lockWait.print(sb);
+        joinSnapshot.print(sb);
+        compress.print(sb);
+        decompress.print(sb);
+        return sb.toString();
+    }
+
+    private static void counters(StringBuilder sb, String name, String help, LongAdder[] byType) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        for (int i = 0; i < byType.length; i++) {
+            sb.append(name).append("{type=\"").append(TYPE_NAMES[i]).append("\"} ").append(byType[i].sum()).append('\n');
+        }
+    }
+
+    private static void value(StringBuilder sb, String name, String type, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static long sum(LongAdder[] adders) {
+        long sum = 0;
+        for (LongAdder adder : adders) {
+            sum += adder.sum();
+        }
+        return sum;
+    }
+
+    @Override
+    public int getClients() {
+        return server.clientCount();
+    }
+
+    @Override
+    public long getFramesIn() {
+        return sum(framesIn);
+    }
+
+    @Override
+    public long getFramesOut() {
+        return sum(framesOut);
+    }
+
+    @Override
+    public long getBytesIn() {
+        return sum(bytesIn);
+    }
+
+    @Override
+    public long getBytesOut() {
+        return sum(bytesOut);
+    }
+
+    @Override
+    public long getDroppedClients() {
+        return dropped.sum();
+    }
+
+    @Override
+    public long getQueueOverflows() {
+        return overflows.sum();
+    }
+
+    @Override
+    public int getMaxQueueDepth() {
+        int max = 0;
+        synchronized (server.rooms) {
+            for (Room room : server.rooms.values()) {
+                for (Client client : room.members()) {
+                    max = Math.max(max, client.queue.size());
+                }
+            }
+        }
+        return max;
+    }
+
+    @Override
+    public double getFanoutP99Micros() {
+        return fanout.quantile(0.99) / 1e3;
+    }
+
+    @Override
+    public double getLockWaitP99Micros() {
+        return lockWait.quantile(0.99) / 1e3;
+    }
+
+    @Override
+    public double getJoinSnapshotP99Millis() {
+        return joinSnapshot.quantile(0.99) / 1e6;
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        long wire = compressedWire.sum();
+        return wire == 0 ? 0 : (double) compressedRaw.sum() / wire;
+    }
+
+    @Override
+    public double getCompressP99Micros() {
+        return compress.quantile(0.99) / 1e3;
+    }
+}
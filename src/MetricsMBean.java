@@ -0,0 +1,39 @@
+/**
+ * The MetricsMBean interface is what JMX clients such as jconsole see of a server's Metrics.
+ * Totals count since the server started; quantiles are upper bounds from power-of-two buckets.
+ */
+public interface MetricsMBean {
+    int getClients();
+
+    long getFramesIn();
+
+    long getFramesOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    /** Clients disconnected for reading too slowly. */
+    long getDroppedClients();
+
+    long getQueueOverflows();
+
+    /** The longest outbound queue of any client right now. */
+    int getMaxQueueDepth();
+
+    double getFanoutP99Micros();
+
+    double getLockWaitP99Micros();
+
+    double getJoinSnapshotP99Millis();
+
+    /** Bytes of the frames compressed for clients per byte written in their place, 0 if nothing was compressed. */
+    double getCompressionRatio();
+
+    double getCompressP99Micros();
+
+    /**
+     * @return Every metric in the Prometheus text format, as served over HTTP.
+     */
+    String scrape();
+}
@@ -0,0 +1,377 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A client served by the NioEngine. Frames are queued like for any client and flushed by the event loop
+ * that owns the channel, through the loop's direct buffer; the client itself only keeps the frames that did
+ * not fit into the socket yet and the frame it is in the middle of reading.
+ */
+class NioClient extends Client {
+    final SocketChannel channel;
+    final NioEngine engine;
+    final NioEngine.EventLoop loop;
+    SelectionKey key;
+    boolean handshaken;
+    // the frame being read, reused for every frame: its header, then its payload
+    private final byte[] header = new byte[Protocol.HEADER_SIZE];
+    private int headerRead;
+    int frameType;
+    int frameLen;
+    byte[] payload = new byte[1024];
+    private int payloadRead;
+    // frames taken off the queue but not completely written, and how much of the first one has been written
+    private final ArrayDeque<byte[]> pending = new ArrayDeque<>();
+    private int pendingOffset;
+    // whether the event loop has been asked to flush; guarded by this
+    private boolean flushScheduled;
+
+    NioClient(SocketChannel channel, NioEngine engine, NioEngine.EventLoop loop) {
+        this.channel = channel;
+        this.engine = engine;
+        this.loop = loop;
+    }
+
+    @Override
+    InetAddress address() {
+        return channel.socket().getInetAddress();
+    }
+
+    /**
+     * Queues one frame for this client and asks its event loop to flush it.
+     */
+    @Override
+    void write(byte[] frame) {
+        if (!enqueue(frame, false)) close();
+    }
+
+    @Override
+    void writeLossy(byte[] frame) {
+        enqueue(frame, true);
+    }
+
+    /**
+     * Queues the notice and writes it right away, since closing discards what is queued. Runs on the event loop.
+     */
+    @Override
+    void refuse(String text) throws IOException {
+        byte[] message = ("Server: " + text).getBytes(StandardCharsets.UTF_8);
+        write(Protocol.frame(Protocol.CHAT, message, message.length));
+        flush();
+    }
+
+    private boolean enqueue(byte[] frame, boolean lossy) {
+        synchronized (this) {
+            if (!(lossy ? queue.offerLossy(frame) : queue.offer(frame))) return false;
+            if (flushScheduled) return true;
+            flushScheduled = true;
+        }
+        loop.execute(() -> {
+            if (key.isValid())
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        });
+        return true;
+    }
+
+    /**
+     * Copies queued frames into the event loop's write buffer and writes as much as the socket accepts
+     * without blocking. What the socket did not take stays pending and goes first next time.
+     * Runs on the event loop only, so the pending frames need no lock; frames are only taken off the queue
+     * under a lock, and compressed and written outside of it, so a broadcaster queueing a frame never waits
+     * for this client's compression or socket.
+     *
+     * @return true if everything queued has been written.
+     * @throws IOException If an I/O error occurs.
+     */
+    boolean flush() throws IOException {
+        ByteBuffer buf = loop.writeBuffer;
+        while (true) {
+            buf.clear();
+            int off = pendingOffset;
+            for (byte[] frame : pending) {
+                buf.put(frame, off, Math.min(frame.length - off, buf.remaining()));
+                off = 0;
+                if (!buf.hasRemaining()) break;
+            }
+            while (buf.hasRemaining()) {
+                byte[] frame = next();
+                if (frame == null) break;
+                pending.add(frame);
+                buf.put(frame, 0, Math.min(frame.length, buf.remaining()));
+            }
+            if (buf.position() == 0) {
+                synchronized (this) {
+                    // a frame queued since next() found the queue empty would otherwise never be flushed
+                    if (!queue.isEmpty()) continue;
+                    flushScheduled = false;
+                }
+                return true;
+            }
+            buf.flip();
+            written(channel.write(buf));
+            if (buf.hasRemaining()) return false;
+        }
+    }
+
+    private void written(int n) {
+        while (n > 0) {
+            int left = pending.peek().length - pendingOffset;
+            if (n < left) {
+                pendingOffset += n;
+                return;
+            }
+            n -= left;
+            pending.poll();
+            pendingOffset = 0;
+        }
+    }
+
+    /**
+     * Takes the bytes of the frame being read out of a buffer.
+     *
+     * @param buf The buffer holding what was read from the channel.
+     * @return true once the frame is complete; its type, length and payload are then in frameType, frameLen
+     *         and payload until the next call.
+     * @throws IOException If the frame is longer than MAX_CLIENT_FRAME_SIZE.
+     */
+    boolean readFrame(ByteBuffer buf) throws IOException {
+        if (headerRead < Protocol.HEADER_SIZE) {
+            int n = Math.min(Protocol.HEADER_SIZE - headerRead, buf.remaining());
+            buf.get(header, headerRead, n);
+            headerRead += n;
+            if (headerRead < Protocol.HEADER_SIZE) return false;
+            frameType = Protocol.getInt(header, 0);
+            frameLen = Protocol.getInt(header, 4);
+            if (frameLen < 0 || frameLen > Protocol.MAX_CLIENT_FRAME_SIZE)
+                throw new IOException("Invalid frame length " + frameLen);
+            if (frameLen > payload.length)
+                payload = new byte[Math.max(frameLen, payload.length * 2)];
+            payloadRead = 0;
+        }
+        int n = Math.min(frameLen - payloadRead, buf.remaining());
+        buf.get(payload, payloadRead, n);
+        payloadRead += n;
+        if (payloadRead < frameLen) return false;
+        headerRead = 0;
+        return true;
+    }
+
+    private byte[] next() {
+        byte[] frame = queue.poll();
+        return frame != null && encoder != null ? encoder.encode(frame) : frame;
+    }
+
+    /**
+     * Stops queueing and lets the event loop close the channel.
+     */
+    @Override
+    void close() {
+        queue.close();
+        loop.execute(() -> engine.close(this));
+    }
+}
+
+/**
+ * The NioEngine class serves clients with a small fixed pool of selector-based event loops instead of
+ * a thread per client. The first loop also accepts connections and hands them out round-robin.
+ * Every loop reads and writes through one pair of direct buffers shared by all of its connections, so the
+ * socket I/O needs neither a buffer per connection nor the JDK's hidden copy into a temporary direct buffer.
+ * Frames are assembled in a payload buffer each connection reuses, and gives up again after a long frame, and
+ * passed to the same Server methods the classic engine uses; relaying one allocates just the encoded frame all
+ * recipients share.
+ */
+public class NioEngine {
+    /** Size of the direct buffers of every event loop. */
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Server server;
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Creates the engine and binds its listening socket.
+     *
+     * @param server The server whose state the engine serves.
+     * @param port The TCP port to listen on.
+     * @param threads The number of event-loop threads.
+     * @throws IOException If the port cannot be bound.
+     */
+    public NioEngine(Server server, int port, int threads) throws IOException {
+        this.server = server;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new EventLoop(i);
+        }
+        loops[0].execute(() -> {
+            try {
+                serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+            } catch (IOException e) {
+                System.err.println("Unable to accept connections: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Starts the event-loop threads.
+     */
+    public void start() {
+        for (EventLoop loop : loops) {
+            Thread t = new Thread(loop, "nio-loop-" + loop.id);
+            t.start();
+        }
+    }
+
+    private void accept() throws IOException {
+        while (true) {
+            SocketChannel channel = serverChannel.accept();
+            if (channel == null) return;
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            EventLoop loop = loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+            NioClient client = new NioClient(channel, this, loop);
+            client.queue = server.newQueue(client);
+            client.name = server.takePendingName(channel.socket().getInetAddress());
+            System.out.printf("Established a connection to host %s on %s\n\n", channel.getRemoteAddress(),
+                    "nio-loop-" + loop.id);
+            loop.execute(() -> {
+                try {
+                    client.key = channel.register(loop.selector, SelectionKey.OP_READ, client);
+                } catch (IOException e) {
+                    close(client);
+                }
+            });
+        }
+    }
+
+    /**
+     * Reads what is available and handles every complete frame.
+     */
+    private void read(NioClient client) throws IOException {
+        ByteBuffer buf = client.loop.readBuffer;
+        buf.clear();
+        if (client.channel.read(buf) < 0)
+            throw new IOException("connection closed");
+
+        buf.flip();
+        while (buf.hasRemaining() && client.readFrame(buf)) {
+            if (client.handshaken) {
+                server.handle(client, client.frameType, client.payload, client.frameLen);
+            } else {
+                handshake(client, client.frameType, client.payload, client.frameLen);
+            }
+            client.payload = Protocol.shrink(client.payload);
+        }
+    }
+
+    private void handshake(NioClient client, int type, byte[] payload, int len) throws IOException {
+        if (type != Protocol.HELLO)
+            throw new IOException("Expected a handshake but got a frame of type " + type);
+        Protocol.Hello hello = Protocol.parseHello(payload, len);
+        hello.compress &= server.config.compression;
+        byte[] reply = Protocol.helloReply(hello.version, hello.compress);
+        client.write(Protocol.HELLO, reply, reply.length);
+        if (hello.version == 0) {
+            // closing discards what is queued, so the refusal goes out now, as the classic engine sends it
+            client.flush();
+            throw new IOException("Client does not support protocol version " + Protocol.MIN_VERSION);
+        }
+        // the reply is never compressed, so the encoder can already be in place when it is written
+        if (hello.compress) client.encoder = new Compression.Encoder(server.config.compressMin, server.metrics);
+        client.version = hello.version;
+        if (hello.name != null) client.name = hello.name;
+        client.handshaken = true;
+        server.join(client, hello);
+    }
+
+    void close(NioClient client) {
+        client.queue.close();
+        try {
+            client.channel.close();
+        } catch (IOException e) {
+        }
+        if (client.encoder != null) client.encoder.end();
+        if (client.decoder != null) client.decoder.end();
+        if (client.handshaken) {
+            client.handshaken = false;
+            System.err.println("connection dropped.");
+            server.leave(client);
+        }
+    }
+
+    /**
+     * One selector thread. Other threads hand it work through execute() so that
+     * registrations and interest changes always happen on the loop itself.
+     */
+    class EventLoop implements Runnable {
+        final int id;
+        final Selector selector;
+        // shared by every connection of the loop; only used on the loop's thread
+        final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop(int id) throws IOException {
+            this.id = id;
+            this.selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    System.err.println("Selector failed: " + e.getMessage());
+                    return;
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        try {
+                            accept();
+                        } catch (IOException e) {
+                            System.err.println("Accept failed: " + e.getMessage());
+                        }
+                        continue;
+                    }
+                    NioClient client = (NioClient) key.attachment();
+                    try {
+                        if (key.isReadable())
+                            read(client);
+                        if (key.isValid() && key.isWritable() && client.flush())
+                            key.interestOps(SelectionKey.OP_READ);
+                    } catch (IOException e) {
+                        close(client);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The OpRing class keeps the most recent drawing frames a room relayed, numbered by a sequence number
+ * that grows by one per frame. A client that reconnects with the sequence number it last saw can be sent
+ * just the frames after it, as long as they are still in the ring; older frames are dropped once the ring
+ * holds more than capacity frames or maxBytes bytes.
+ * The class is not thread-safe; rooms guard it with their canvas lock.
+ */
+class OpRing {
+    private final int capacity;
+    private final long maxBytes;
+    private final ArrayDeque<byte[]> frames = new ArrayDeque<>();
+    private long bytes;
+    // sequence number of the newest frame; the oldest one is last - frames.size() + 1
+    private long last;
+
+    /**
+     * @param capacity The maximum number of frames kept.
+     * @param maxBytes The maximum number of bytes kept.
+     */
+    OpRing(int capacity, long maxBytes) {
+        this.capacity = capacity;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Appends a frame and gives it the next sequence number.
+     *
+     * @param frame The encoded frame, header included. It must not be modified afterwards.
+     * @return The sequence number of the frame.
+     */
+    long add(byte[] frame) {
+        frames.addLast(frame);
+        bytes += frame.length;
+        while (frames.size() > capacity || (bytes > maxBytes && frames.size() > 1)) {
+            bytes -= frames.removeFirst().length;
+        }
+        return ++last;
+    }
+
+    /**
+     * @return The sequence number of the newest frame, 0 if there has been none.
+     */
+    long last() {
+        return last;
+    }
+
+    /**
+     * Returns the frames newer than a sequence number.
+     *
+     * @param seq The sequence number of the last frame a client has.
+     * @return The frames after it, oldest first, or null if some of them have already been dropped
+     *         or the sequence number is not one this ring handed out.
+     */
+    List<byte[]> since(long seq) {
+        long first = last - frames.size() + 1;
+        if (seq < first - 1 || seq > last) return null;
+        List<byte[]> missing = new ArrayList<>((int) (last - seq));
+        Iterator<byte[]> it = frames.descendingIterator();
+        for (long s = last; s > seq; s--) {
+            missing.add(it.next());
+        }
+        Collections.reverse(missing);
+        return missing;
+    }
+}
@@ -0,0 +1,217 @@
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.function.Supplier;
+
+/**
+ * The OutboundQueue class is a bounded queue of encoded frames waiting to be written to one client.
+ * Broadcasting only appends to the queues, and each client's writer drains its own queue.
+ * When a client reads slower than the others draw, its queue fills up and the slow-consumer policy decides what happens.
+ */
+class OutboundQueue {
+    /**
+     * What to do when a queue is full.
+     * RESYNC replaces the queued drawing with a snapshot of the canvas,
+     * COALESCE merges the queued drawing frames into regions, and DISCONNECT drops the client.
+     * Either way chat and other frames stay queued in order, and only the newest SYNC frame is kept.
+     */
+    enum Policy {
+        RESYNC, COALESCE, DISCONNECT
+    }
+
+    private final ArrayDeque<byte[]> frames = new ArrayDeque<>();
+    private final int capacity;
+    private final Policy policy;
+    private final Supplier<byte[]> resync;
+    private final Metrics metrics;
+    private boolean closed;
+    private int overflows;
+
+    /**
+     * @param capacity The maximum number of frames in the queue.
+     * @param policy The slow-consumer policy.
+     * @param resync Supplies a frame holding the whole canvas, used by the RESYNC policy.
+     * @param metrics Counts the frames taken off the queue, overflows and dropped clients, or null.
+     */
+    OutboundQueue(int capacity, Policy policy, Supplier<byte[]> resync, Metrics metrics) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.resync = resync;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Appends a frame, applying the slow-consumer policy if the queue is full.
+     *
+     * @param frame The encoded frame, header included.
+     * @return false if the queue is closed or the client has to be disconnected.
+     */
+    synchronized boolean offer(byte[] frame) {
+        if (closed) return false;
+        if (frames.size() >= capacity) {
+            overflows++;
+            if (metrics != null) metrics.overflowed();
+            switch (policy) {
+                case DISCONNECT:
+                    if (metrics != null) metrics.dropped();
+                    close();
+                    return false;
+                case RESYNC:
+                    dropDrawing();
+                    frames.add(resync.get());
+                    // the canvas we just queued already contains this frame if it was a drawing
+                    if (!isDrawing(frame)) frames.add(frame);
+                    notifyAll();
+                    return true;
+                case COALESCE:
+                    coalesce(frame);
+                    notifyAll();
+                    return true;
+            }
+        }
+        frames.add(frame);
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Appends a frame, or drops it if the queue is full, whatever the slow-consumer policy.
+     * Used for chat, which is queued without holding the canvas lock that a snapshot for RESYNC needs.
+     *
+     * @param frame The encoded frame, header included.
+     * @return false if the queue is closed or full.
+     */
+    synchronized boolean offerLossy(byte[] frame) {
+        if (closed) return false;
+        if (frames.size() >= capacity) {
+            overflows++;
+            if (metrics != null) metrics.overflowed();
+            return false;
+        }
+        frames.add(frame);
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Removes the next frame without waiting.
+     *
+     * @return The next frame, or null if the queue is empty.
+     */
+    synchronized byte[] poll() {
+        byte[] frame = frames.poll();
+        if (frame != null && metrics != null) metrics.sent(frame);
+        return frame;
+    }
+
+    /**
+     * Removes the next frame, waiting until there is one.
+     *
+     * @return The next frame, or null once the queue has been closed.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    synchronized byte[] take() throws InterruptedException {
+        while (frames.isEmpty() && !closed) {
+            wait();
+        }
+        return closed ? null : poll();
+    }
+
+    synchronized boolean isEmpty() {
+        return frames.isEmpty();
+    }
+
+    synchronized int size() {
+        return frames.size();
+    }
+
+    /**
+     * @return How many times the queue has been full.
+     */
+    synchronized int overflows() {
+        return overflows;
+    }
+
+    /**
+     * Closes the queue and wakes up its writer. Queued frames are discarded.
+     */
+    synchronized void close() {
+        closed = true;
+        frames.clear();
+        notifyAll();
+    }
+
+    /**
+     * Removes the drawing a snapshot of the canvas is about to replace: PIXEL and REGION frames, earlier
+     * snapshots, and all SYNC frames but the newest.
+     */
+    private void dropDrawing() {
+        byte[] sync = null;
+        for (byte[] f : frames) {
+            if (Protocol.getInt(f, 0) == Protocol.SYNC) sync = f;
+        }
+        Iterator<byte[]> it = frames.iterator();
+        while (it.hasNext()) {
+            byte[] f = it.next();
+            int type = Protocol.getInt(f, 0);
+            if (isDrawing(f) || type == Protocol.SNAPSHOT || (type == Protocol.SYNC && f != sync)) it.remove();
+        }
+    }
+
+    /**
+     * Merges the queued PIXEL and REGION frames and the new frame into REGION frames. A SNAPSHOT or FILL
+     * frame cannot be merged with what comes before or after it, so the drawing between two of them becomes
+     * one region, placed right before the second; chat and other frames keep their order. SYNC frames count
+     * the drawing before them, so only the newest one is kept and it goes last.
+     */
+    private void coalesce(byte[] frame) {
+        frames.add(frame);
+        ArrayDeque<byte[]> merged = new ArrayDeque<>();
+        Region region = new Region();
+        byte[] sync = null;
+        for (byte[] f : frames) {
+            int type = Protocol.getInt(f, 0);
+            if (type == Protocol.SYNC) {
+                sync = f;
+            } else if (isDrawing(f)) {
+                add(region, f);
+            } else {
+                if (type == Protocol.SNAPSHOT || type == Protocol.FILL) {
+                    addRegion(merged, region);
+                    region = new Region();
+                }
+                merged.add(f);
+            }
+        }
+        addRegion(merged, region);
+        if (sync != null) merged.add(sync);
+        frames.clear();
+        frames.addAll(merged);
+    }
+
+    private static void add(Region region, byte[] f) {
+        int len = f.length - Protocol.HEADER_SIZE;
+        byte[] payload = new byte[len];
+        System.arraycopy(f, Protocol.HEADER_SIZE, payload, 0, len);
+        if (Protocol.getInt(f, 0) == Protocol.PIXEL) {
+            region.add(Protocol.pixelCol(payload, 0), Protocol.pixelRow(payload, 0), Protocol.pixelColor(payload, 0));
+        } else {
+            Region.decode(payload, len, (col, row, length, color) -> {
+                for (int x = col; x < col + length; x++) {
+                    region.add(x, row, color);
+                }
+            });
+        }
+    }
+
+    private static void addRegion(ArrayDeque<byte[]> queue, Region region) {
+        if (region.isEmpty()) return;
+        for (byte[] f : Protocol.regionFrames(region.encode())) {
+            queue.add(f);
+        }
+    }
+
+    private static boolean isDrawing(byte[] frame) {
+        int type = Protocol.getInt(frame, 0);
+        return type == Protocol.PIXEL || type == Protocol.REGION;
+    }
+}
@@ -0,0 +1,222 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The PeerLink class connects a room on a replica node to the room of the same name on the primary node.
+ * The primary orders everything: the replica forwards the drawing and chat frames of its own members over the
+ * link instead of applying them, and applies only what the primary relays back, so every node applies the same
+ * frames in the same order. The link joins the primary like any other client and keeps the primary's
+ * epoch and sequence number; after a dropped connection it resumes from them and is sent only the frames it
+ * missed, or a snapshot, which the room turns into the cells that changed.
+ * Frames forwarded while the link is down wait in a backlog that coalesces drawing like the link's own queue
+ * and is sent first once the link is back; chat that does not fit is refused with a notice to its sender.
+ * Frames the link was writing when it dropped may never reach the primary, so once the link is back and has
+ * caught up, the members are sent a snapshot of the room, which undoes any of their drawing that was lost.
+ */
+class PeerLink {
+    /** The longest wait between two attempts to reach the primary, in milliseconds. */
+    static final int MAX_BACKOFF = 5000;
+
+    private final Room room;
+    private final ServerConfig config;
+    // the connection to the primary with its writer, or null while there is none; changed under this
+    private volatile Client upstream;
+    // what members forwarded while there was no connection; guarded by this
+    private final OutboundQueue backlog;
+    private volatile boolean closed;
+    // the primary's epoch and the sequence number of the last drawing frame applied; only used by the link thread
+    private long epoch;
+    private long seq;
+
+    /**
+     * @param room The replica's room.
+     * @param config The server options naming the primary.
+     */
+    PeerLink(Room room, ServerConfig config) {
+        this.room = room;
+        this.config = config;
+        backlog = new OutboundQueue(config.queueCapacity, OutboundQueue.Policy.COALESCE, null, null);
+    }
+
+    /**
+     * Starts connecting to the primary on the link's own thread.
+     */
+    void start() {
+        Thread t = new Thread(this::run, "peer-link-" + room.name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Sends a frame from a member of the replica's room to the primary, or keeps it in the backlog while
+     * the link is down.
+     *
+     * @param type The type of the frame.
+     * @param buffer The byte array containing the payload.
+     * @param len The length of the payload.
+     * @return false if the frame is a chat message that did not fit into the full backlog.
+     */
+    synchronized boolean forward(int type, byte[] buffer, int len) {
+        byte[] frame = Protocol.frame(type, buffer, len);
+        if (upstream != null) {
+            upstream.write(frame);
+            return true;
+        }
+        return type == Protocol.CHAT ? backlog.offerLossy(frame) : backlog.offer(frame);
+    }
+
+    /**
+     * Makes a new connection the one frames are forwarded over, sending the backlog first.
+     */
+    private synchronized void up(Client client) {
+        byte[] frame;
+        while ((frame = backlog.poll()) != null) {
+            client.write(frame);
+        }
+        upstream = client;
+    }
+
+    /**
+     * Stops forwarding over a dropped connection and puts back what it had not written yet.
+     */
+    private synchronized void down(Client client) {
+        if (upstream == client) upstream = null;
+        byte[] frame;
+        while ((frame = client.queue.poll()) != null) {
+            if (Protocol.getInt(frame, 0) == Protocol.CHAT) backlog.offerLossy(frame);
+            else backlog.offer(frame);
+        }
+    }
+
+    /**
+     * Drops the connection to the primary for good.
+     */
+    void close() {
+        closed = true;
+        Client client = upstream;
+        if (client != null) client.close();
+    }
+
+    /**
+     * Keeps the link up until it is closed, waiting longer after every failed attempt.
+     */
+    private void run() {
+        int attempt = 0;
+        while (!closed) {
+            try {
+                connect();
+                attempt = 0;
+            } catch (IOException e) {
+                if (closed) break;
+                System.err.printf("Peer link of room %s to %s:%d dropped: %s\n", room.name, config.primaryHost,
+                        config.primaryPort, e instanceof EOFException ? "closed by the primary" : e.getMessage());
+            }
+            try {
+                Thread.sleep(Math.min(100L << Math.min(attempt++, 6), MAX_BACKOFF));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Connects to the primary, joins the room and applies what the primary relays until the connection drops.
+     */
+    private void connect() throws IOException {
+        Socket socket = Discovery.open(config.primaryHost, config.primaryPort);
+        Client client = new Client();
+        client.name = "peer " + room.name;
+        client.socket = socket;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            client.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            Protocol.Hello answer = Protocol.clientHello(in, client.out, Protocol.PEER_PREFIX + config.port,
+                    room.name, epoch, seq, config.compression);
+            client.version = answer.version;
+            if (answer.compress) client.encoder = new Compression.Encoder(config.compressMin, room.metrics);
+            if (client.version < Protocol.RESUME_VERSION)
+                throw new IOException("the primary speaks protocol version " + client.version);
+            // the primary is slower than our members: merge their drawing rather than drop the link
+            client.queue = new OutboundQueue(config.queueCapacity, OutboundQueue.Policy.COALESCE, null,
+                    room.metrics);
+            new Thread(client::drain, "peer-writer-" + room.name).start();
+            up(client);
+            if (closed) return;
+            System.out.printf("Peer link of room %s connected to %s:%d.\n", room.name, config.primaryHost,
+                    config.primaryPort);
+            receive(in, client);
+        } finally {
+            if (client.queue != null) {
+                down(client);
+                client.close();
+            } else {
+                socket.close();
+            }
+        }
+    }
+
+    private void receive(DataInputStream in, Client client) throws IOException {
+        byte[] buffer = new byte[1024];
+        // the primary sends a SYNC frame once it has sent everything the link missed
+        boolean caughtUp = false;
+        while (true) {
+            int type = in.readInt();
+            int len = in.readInt();
+            buffer = Protocol.readPayload(in, buffer, len);
+            byte[] data = buffer;
+            if (type == Protocol.COMPRESSED) {
+                if (client.decoder == null) client.decoder = new Compression.Decoder(Protocol.MAX_FRAME_SIZE, room.metrics);
+                client.decoder.decode(buffer, len);
+                type = client.decoder.type;
+                len = client.decoder.len;
+                data = client.decoder.payload;
+            }
+            switch (type) {
+                case Protocol.SYNC:
+                    if (len < Protocol.SYNC_SIZE) break;
+                    epoch = Protocol.getLong(data, 0);
+                    seq = Protocol.getLong(data, 8);
+                    if (!caughtUp) room.resync();
+                    caughtUp = true;
+                    break;
+                case Protocol.SNAPSHOT:
+                    // the sequence number it stands for comes in the SYNC frame right after it
+                    try {
+                        room.replace(Snapshot.decode(data, len));
+                    } catch (IllegalArgumentException e) {
+                        throw new IOException("Malformed snapshot: " + e.getMessage());
+                    }
+                    break;
+                case Protocol.PIXEL:
+                case Protocol.REGION:
+                    // one sequence number per frame; frames merged by the primary's queue make this count fall
+                    // behind, which only means a few frames are applied twice after resuming
+                    seq++;
+                    room.apply(type, data, len);
+                    break;
+                case Protocol.CHAT:
+                    // before joining, a message can only be the primary's reason for turning the link away
+                    if (!caughtUp)
+                        throw new IOException(new String(data, 0, len, StandardCharsets.UTF_8));
+                    room.chat.publish(Arrays.copyOf(data, len));
+                    break;
+                case Protocol.CHAT_HISTORY:
+                    try {
+                        room.chat.restore(data, len);
+                    } catch (IllegalArgumentException e) {
+                        throw new IOException("Malformed chat history: " + e.getMessage());
+                    }
+                    break;
+                default:
+                    // a primary relays nothing else; SNAPSHOT and SYNC are handled above
+            }
+        }
+    }
+}
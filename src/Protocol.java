@@ -0,0 +1,504 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+
+/**
+ * The Protocol class holds the wire format shared by the Server and the UI.
+ * Every frame is an int type, an int payload length and the payload itself.
+ * Pixel updates are a fixed 8-byte payload: col and row as unsigned shorts followed by the ARGB color.
+ * A FILL frame has the same payload as a pixel update and asks the server to flood-fill the area around
+ * the cell; the server answers everyone in the room with the filled cells as REGION frames.
+ * A SYNC frame holds the room's epoch and the sequence number of the last drawing frame sent before it,
+ * both as longs; a client that reconnects offers them in its handshake to be sent only what it missed.
+ * A CHAT frame is one UTF-8 message; a CHAT_HISTORY frame holds a room's recent messages, as encoded by Chat.
+ * A COMPRESSED frame holds another frame run through the connection's deflate stream, see Compression.
+ */
+public class Protocol {
+    /**
+     * The newest protocol version this build speaks. Version 2 adds the user and room names to the handshake,
+     * version 3 the FILL frame, version 4 SYNC frames and resuming from a sequence number, version 5 the
+     * CHAT_HISTORY frame and version 6 compression.
+     */
+    static final int VERSION = 6;
+    /** The oldest version a server accepts FILL frames from. */
+    static final int FILL_VERSION = 3;
+    /** The oldest version that is sent SYNC frames and may resume. */
+    static final int RESUME_VERSION = 4;
+    /** The oldest version that is sent the chat history in a single CHAT_HISTORY frame. */
+    static final int CHAT_HISTORY_VERSION = 5;
+    /** The oldest version that may ask for compression in its handshake. */
+    static final int COMPRESSION_VERSION = 6;
+    /** The oldest protocol version this build still accepts. */
+    static final int MIN_VERSION = 1;
+
+    static final int CHAT = -1;
+    static final int PIXEL = 0;
+    static final int HELLO = 1;
+    static final int REGION = 2;
+    static final int SNAPSHOT = 3;
+    static final int FILL = 4;
+    static final int SYNC = 5;
+    static final int CHAT_HISTORY = 6;
+    static final int COMPRESSED = 7;
+    static final int SYNC_SIZE = 16;
+
+    static final int HEADER_SIZE = 8;
+    static final int PIXEL_SIZE = 8;
+    /** Frames with a longer payload are rejected instead of allocating a buffer for them. Big enough for a snapshot of a large canvas. */
+    static final int MAX_FRAME_SIZE = 1 << 26;
+    /**
+     * Clients send nothing longer than a region of MAX_REGION_RUNS runs or a chat message, so the server rejects
+     * longer frames from them; only what a server sends can be as long as MAX_FRAME_SIZE.
+     */
+    static final int MAX_CLIENT_FRAME_SIZE = 1 << 20;
+    /** A buffer that grew past this for one long frame is replaced after it, so the connection does not keep it. */
+    static final int KEEP_BUFFER_SIZE = 64 * 1024;
+    /** Regions with more runs are split over several frames. */
+    static final int MAX_REGION_RUNS = 1 << 16;
+    /** Frames of at least this many bytes, header included, are compressed on a compressed connection. */
+    static final int COMPRESS_MIN = 256;
+    static final String DEFAULT_ROOM = "lobby";
+    /** The UDP port servers answer discovery packets on. */
+    static final int DISCOVERY_PORT = 5555;
+    /** Starts a discovery request or reply, followed by the sender's protocol version. */
+    static final String DISCOVERY_PREFIX = "KP/";
+    /** Starts the name a replica's peer link joins its primary with. */
+    static final String PEER_PREFIX = "peer:";
+
+    /**
+     * What a client announced in its handshake.
+     */
+    static class Hello {
+        int version;
+        String name;
+        String room = DEFAULT_ROOM;
+        /** The room epoch and sequence number the client resumes from, 0 for none. */
+        long epoch;
+        long seq;
+        /** Whether the client asks to be sent compressed frames; in the server's answer, whether it agreed. */
+        boolean compress;
+    }
+
+    private Protocol() {
+    }
+
+    /**
+     * Writes a whole frame with a single write so that frames from different threads never interleave.
+     *
+     * @param out The stream to write to.
+     * @param type The type of the frame.
+     * @param payload The byte array containing the payload.
+     * @param len The length of the payload.
+     * @throws IOException If an I/O error occurs.
+     */
+    static void writeFrame(DataOutputStream out, int type, byte[] payload, int len) throws IOException {
+        byte[] frame = frame(type, payload, len);
+        synchronized (out) {
+            out.write(frame, 0, frame.length);
+            out.flush();
+        }
+    }
+
+    /**
+     * Encodes a whole frame, header included.
+     *
+     * @param type The type of the frame.
+     * @param payload The byte array containing the payload.
+     * @param len The length of the payload.
+     * @return The encoded frame.
+     */
+    static byte[] frame(int type, byte[] payload, int len) {
+        byte[] frame = new byte[HEADER_SIZE + len];
+        putInt(frame, 0, type);
+        putInt(frame, 4, len);
+        System.arraycopy(payload, 0, frame, HEADER_SIZE, len);
+        return frame;
+    }
+
+    /**
+     * Writes a single pixel update frame.
+     *
+     * @param out The stream to write to.
+     * @param col The column of the pixel.
+     * @param row The row of the pixel.
+     * @param color The ARGB color of the pixel.
+     * @throws IOException If an I/O error occurs.
+     */
+    static void writePixel(DataOutputStream out, int col, int row, int color) throws IOException {
+        byte[] payload = new byte[PIXEL_SIZE];
+        encodePixel(payload, 0, col, row, color);
+        writeFrame(out, PIXEL, payload, PIXEL_SIZE);
+    }
+
+    /**
+     * Writes a set of pixel changes as a REGION frame, split into several frames if it has more than MAX_REGION_RUNS runs.
+     *
+     * @param out The stream to write to.
+     * @param region The pixel changes to write.
+     * @throws IOException If an I/O error occurs.
+     */
+    static void writeRegion(DataOutputStream out, Region region) throws IOException {
+        if (region.isEmpty()) return;
+        writeRegion(out, region.encode());
+    }
+
+    /**
+     * Writes an encoded region, split over several frames if it has more than MAX_REGION_RUNS runs.
+     *
+     * @param out The stream to write to.
+     * @param payload The REGION payload.
+     * @throws IOException If an I/O error occurs.
+     */
+    static void writeRegion(DataOutputStream out, byte[] payload) throws IOException {
+        for (byte[] frame : regionFrames(payload)) {
+            synchronized (out) {
+                out.write(frame, 0, frame.length);
+                out.flush();
+            }
+        }
+    }
+
+    /**
+     * Encodes a REGION payload as frames of at most MAX_REGION_RUNS runs each.
+     *
+     * @param payload The REGION payload.
+     * @return The encoded frames, headers included; none if the region has no runs.
+     */
+    static byte[][] regionFrames(byte[] payload) {
+        int runs = getInt(payload, 0);
+        if (runs == 0) return new byte[0][];
+        if (runs <= MAX_REGION_RUNS) return new byte[][] {frame(REGION, payload, payload.length)};
+        byte[][] frames = new byte[(runs + MAX_REGION_RUNS - 1) / MAX_REGION_RUNS][];
+        for (int first = 0; first < runs; first += MAX_REGION_RUNS) {
+            int count = Math.min(MAX_REGION_RUNS, runs - first);
+            byte[] chunk = new byte[4 + count * Region.RUN_SIZE];
+            putInt(chunk, 0, count);
+            System.arraycopy(payload, 4 + first * Region.RUN_SIZE, chunk, 4, count * Region.RUN_SIZE);
+            frames[first / MAX_REGION_RUNS] = frame(REGION, chunk, chunk.length);
+        }
+        return frames;
+    }
+
+    /**
+     * Reads the payload of a frame whose header has already been read, growing the buffer if needed.
+     *
+     * @param in The stream to read from.
+     * @param buffer The buffer to read into.
+     * @param len The length of the payload.
+     * @return The buffer holding the payload, which is a new one if the given buffer was too small.
+     * @throws IOException If an I/O error occurs or the frame is larger than MAX_FRAME_SIZE.
+     */
+    static byte[] readPayload(DataInputStream in, byte[] buffer, int len) throws IOException {
+        return readPayload(in, buffer, len, MAX_FRAME_SIZE);
+    }
+
+    /**
+     * Reads the payload of a frame whose header has already been read, growing the buffer if needed.
+     *
+     * @param in The stream to read from.
+     * @param buffer The buffer to read into.
+     * @param len The length of the payload.
+     * @param max The longest payload accepted.
+     * @return The buffer holding the payload, which is a new one if the given buffer was too small.
+     * @throws IOException If an I/O error occurs or the frame is longer than max.
+     */
+    static byte[] readPayload(DataInputStream in, byte[] buffer, int len, int max) throws IOException {
+        if (len < 0 || len > max)
+            throw new IOException("Invalid frame length " + len);
+        if (len > buffer.length)
+            buffer = new byte[Math.max(len, buffer.length * 2)];
+        in.readFully(buffer, 0, len);
+        return buffer;
+    }
+
+    /**
+     * Gives up a buffer that a long frame grew, once that frame has been handled.
+     *
+     * @param buffer The buffer a connection reads into.
+     * @return The buffer, or a new small one if it is longer than KEEP_BUFFER_SIZE.
+     */
+    static byte[] shrink(byte[] buffer) {
+        return buffer.length > KEEP_BUFFER_SIZE ? new byte[1024] : buffer;
+    }
+
+    /**
+     * Encodes a pixel update into the given buffer.
+     *
+     * @param buf The buffer to write to.
+     * @param off The offset of the pixel in the buffer.
+     * @param col The column of the pixel.
+     * @param row The row of the pixel.
+     * @param color The ARGB color of the pixel.
+     */
+    static void encodePixel(byte[] buf, int off, int col, int row, int color) {
+        putShort(buf, off, col);
+        putShort(buf, off + 2, row);
+        putInt(buf, off + 4, color);
+    }
+
+    static int pixelCol(byte[] buf, int off) {
+        return getShort(buf, off);
+    }
+
+    static int pixelRow(byte[] buf, int off) {
+        return getShort(buf, off + 2);
+    }
+
+    static int pixelColor(byte[] buf, int off) {
+        return getInt(buf, off + 4);
+    }
+
+    /**
+     * Performs the client side of the handshake: offers our newest version with the user and room names
+     * and reads back the version the server picked.
+     *
+     * @param in The stream to read from.
+     * @param out The stream to write to.
+     * @param name The name of the user.
+     * @param room The room to join or create.
+     * @return The negotiated protocol version.
+     * @throws IOException If an I/O error occurs or the server refuses every version we speak.
+     */
+    static int clientHandshake(DataInputStream in, DataOutputStream out, String name, String room) throws IOException {
+        return clientHandshake(in, out, name, room, 0, 0);
+    }
+
+    /**
+     * Performs the client side of the handshake for a client that was in the room before and asks to be
+     * sent only the drawing frames after the last SYNC frame it received.
+     *
+     * @param in The stream to read from.
+     * @param out The stream to write to.
+     * @param name The name of the user.
+     * @param room The room to join or create.
+     * @param epoch The epoch of the last SYNC frame, 0 for a fresh join.
+     * @param seq The sequence number of the last SYNC frame.
+     * @return The negotiated protocol version.
+     * @throws IOException If an I/O error occurs or the server refuses every version we speak.
+     */
+    static int clientHandshake(DataInputStream in, DataOutputStream out, String name, String room, long epoch,
+            long seq) throws IOException {
+        return clientHello(in, out, name, room, epoch, seq, false).version;
+    }
+
+    /**
+     * Performs the client side of the handshake, optionally asking for compression.
+     *
+     * @param in The stream to read from.
+     * @param out The stream to write to.
+     * @param name The name of the user.
+     * @param room The room to join or create.
+     * @param epoch The epoch of the last SYNC frame, 0 for a fresh join.
+     * @param seq The sequence number of the last SYNC frame.
+     * @param compress Whether to ask for compression.
+     * @return The server's answer: the negotiated version and whether both ends may compress.
+     * @throws IOException If an I/O error occurs or the server refuses every version we speak.
+     */
+    static Hello clientHello(DataInputStream in, DataOutputStream out, String name, String room, long epoch,
+            long seq, boolean compress) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(payload);
+        data.writeInt(VERSION);
+        data.writeUTF(name);
+        data.writeUTF(room);
+        data.writeLong(epoch);
+        data.writeLong(seq);
+        data.writeBoolean(compress);
+        writeFrame(out, HELLO, payload.toByteArray(), payload.size());
+
+        int type = in.readInt();
+        int len = in.readInt();
+        if (type != HELLO || len < 4)
+            throw new IOException("Expected a handshake but got a frame of type " + type);
+        byte[] reply = readPayload(in, new byte[8], len);
+        Hello answer = new Hello();
+        answer.version = getInt(reply, 0);
+        if (answer.version < MIN_VERSION || answer.version > VERSION)
+            throw new IOException("Server does not support protocol version " + VERSION);
+        answer.compress = compress && answer.version >= COMPRESSION_VERSION && len > 4 && reply[4] != 0;
+        return answer;
+    }
+
+    /**
+     * Performs the server side of the handshake: reads the client's hello and answers with
+     * the highest version both sides speak, or 0 if there is none.
+     *
+     * @param in The stream to read from.
+     * @param out The stream to write to.
+     * @param allowCompression Whether to agree if the client asks for compression.
+     * @return What the client announced, with the negotiated version and whether both ends may compress.
+     * @throws IOException If an I/O error occurs or the client is too old.
+     */
+    static Hello serverHandshake(DataInputStream in, DataOutputStream out, boolean allowCompression)
+            throws IOException {
+        int type = in.readInt();
+        int len = in.readInt();
+        if (type != HELLO)
+            throw new IOException("Expected a handshake but got a frame of type " + type);
+        byte[] payload = readPayload(in, new byte[64], len, MAX_CLIENT_FRAME_SIZE);
+        Hello hello = parseHello(payload, len);
+        hello.compress &= allowCompression;
+        writeHelloReply(out, hello.version, hello.compress);
+        if (hello.version == 0)
+            throw new IOException("Client does not support protocol version " + MIN_VERSION);
+        return hello;
+    }
+
+    /**
+     * Parses the payload of a client's HELLO frame and negotiates the version.
+     * Version 1 clients only send their version and end up in the default room.
+     *
+     * @param payload The byte array containing the payload.
+     * @param len The length of the payload.
+     * @return What the client announced, with the negotiated version.
+     * @throws IOException If the payload is malformed.
+     */
+    static Hello parseHello(byte[] payload, int len) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload, 0, len));
+        Hello hello = new Hello();
+        hello.version = negotiate(in.readInt());
+        if (hello.version >= 2) {
+            hello.name = in.readUTF();
+            hello.room = in.readUTF().trim();
+            if (hello.room.isEmpty()) hello.room = DEFAULT_ROOM;
+        }
+        if (hello.version >= RESUME_VERSION) {
+            hello.epoch = in.readLong();
+            hello.seq = in.readLong();
+        }
+        if (hello.version >= COMPRESSION_VERSION) hello.compress = in.readBoolean();
+        return hello;
+    }
+
+    /**
+     * Picks the version to use for a peer that offered the given version.
+     *
+     * @param offered The newest version the peer speaks.
+     * @return The negotiated version, or 0 if the peer is too old.
+     */
+    static int negotiate(int offered) {
+        int version = Math.min(offered, VERSION);
+        return version < MIN_VERSION ? 0 : version;
+    }
+
+    /**
+     * Encodes the server's answer to a HELLO frame.
+     *
+     * @param version The negotiated version, or 0 to refuse the client.
+     * @param compress Whether both ends may compress; only sent to clients of version 6 and later.
+     * @return The HELLO payload.
+     */
+    static byte[] helloReply(int version, boolean compress) {
+        byte[] payload = new byte[version >= COMPRESSION_VERSION ? 5 : 4];
+        putInt(payload, 0, version);
+        if (version >= COMPRESSION_VERSION) payload[4] = (byte) (compress ? 1 : 0);
+        return payload;
+    }
+
+    private static void writeHelloReply(DataOutputStream out, int version, boolean compress) throws IOException {
+        byte[] payload = helloReply(version, compress);
+        writeFrame(out, HELLO, payload, payload.length);
+    }
+
+    /**
+     * Builds a discovery request: the prefix, the protocol version and the user name, e.g. "KP/4 alice".
+     * Servers that predate it take the whole packet as the name and answer with just their port.
+     *
+     * @param name The user name.
+     * @return The request text.
+     */
+    static String discoveryRequest(String name) {
+        return DISCOVERY_PREFIX + VERSION + " " + name;
+    }
+
+    /**
+     * Reads the user name out of a discovery request.
+     *
+     * @param request The text of the packet.
+     * @return The name, or null if the packet is not a discovery request but an old client's bare name.
+     */
+    static String discoveryName(String request) {
+        if (!request.startsWith(DISCOVERY_PREFIX)) return null;
+        int space = request.indexOf(' ');
+        if (space < 0) return null;
+        try {
+            Integer.parseInt(request.substring(DISCOVERY_PREFIX.length(), space));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return request.substring(space + 1);
+    }
+
+    /**
+     * Builds a discovery reply, e.g. "KP/4 port=8080 clients=3 rooms=lobby,art".
+     * The room names are URL-encoded, so neither spaces nor commas inside them break the list.
+     *
+     * @param port The TCP port the server accepts connections on.
+     * @param clients The number of connected clients.
+     * @param rooms The names of the open rooms.
+     * @return The reply text.
+     */
+    static String discoveryReply(int port, int clients, String[] rooms) {
+        StringBuilder sb = new StringBuilder(DISCOVERY_PREFIX).append(VERSION)
+                .append(" port=").append(port)
+                .append(" clients=").append(clients)
+                .append(" rooms=");
+        for (int i = 0; i < rooms.length; i++) {
+            if (i > 0) sb.append(',');
+            try {
+                sb.append(URLEncoder.encode(rooms[i], "UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Encodes a SYNC payload.
+     *
+     * @param epoch The epoch of the room.
+     * @param seq The sequence number of the last drawing frame sent before the SYNC frame.
+     * @return The SYNC payload.
+     */
+    static byte[] sync(long epoch, long seq) {
+        byte[] payload = new byte[SYNC_SIZE];
+        putLong(payload, 0, epoch);
+        putLong(payload, 8, seq);
+        return payload;
+    }
+
+    static void putLong(byte[] buf, int off, long v) {
+        putInt(buf, off, (int) (v >>> 32));
+        putInt(buf, off + 4, (int) v);
+    }
+
+    static long getLong(byte[] buf, int off) {
+        return ((long) getInt(buf, off) << 32) | (getInt(buf, off + 4) & 0xFFFFFFFFL);
+    }
+
+    static void putShort(byte[] buf, int off, int v) {
+        buf[off] = (byte) (v >>> 8);
+        buf[off + 1] = (byte) v;
+    }
+
+    static void putInt(byte[] buf, int off, int v) {
+        buf[off] = (byte) (v >>> 24);
+        buf[off + 1] = (byte) (v >>> 16);
+        buf[off + 2] = (byte) (v >>> 8);
+        buf[off + 3] = (byte) v;
+    }
+
+    static int getShort(byte[] buf, int off) {
+        return ((buf[off] & 0xFF) << 8) | (buf[off + 1] & 0xFF);
+    }
+
+    static int getInt(byte[] buf, int off) {
+        return ((buf[off] & 0xFF) << 24) | ((buf[off + 1] & 0xFF) << 16)
+                | ((buf[off + 2] & 0xFF) << 8) | (buf[off + 3] & 0xFF);
+    }
+}
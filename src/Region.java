@@ -0,0 +1,151 @@
+import java.util.Arrays;
+
+/**
+ * The Region class collects a set of pixel changes and encodes them as one REGION frame payload.
+ * The payload is an int run count followed by runs of (col, row, length, color), where a run covers
+ * length cells starting at (col, row) and going right along the row. Cols, rows and lengths are unsigned shorts.
+ */
+public class Region {
+    static final int RUN_SIZE = 10;
+
+    /**
+     * Receives the runs of a decoded region.
+     */
+    interface RunVisitor {
+        void run(int col, int row, int length, int color);
+    }
+
+    private long[] keys = new long[64];
+    private int[] colors = new int[64];
+    private int size;
+
+    /**
+     * Adds a pixel change. If the same cell is added twice the later color wins.
+     *
+     * @param col The column of the pixel.
+     * @param row The row of the pixel.
+     * @param color The ARGB color of the pixel.
+     */
+    void add(int col, int row, int color) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            colors = Arrays.copyOf(colors, size * 2);
+        }
+        // sort by row, then col, then insertion order
+        keys[size] = ((long) (row & 0xFFFF) << 48) | ((long) (col & 0xFFFF) << 32) | size;
+        colors[size] = color;
+        size++;
+    }
+
+    /**
+     * Adds every cell whose color differs between two canvases, using the colors of the second.
+     * Only tiles that are drawn on in either canvas are looked at, and only the area both canvases cover.
+     *
+     * @param before The canvas as it was.
+     * @param after The canvas as it should be.
+     */
+    void addChanges(TiledCanvas before, TiledCanvas after) {
+        int width = Math.min(before.width(), after.width());
+        int height = Math.min(before.height(), after.height());
+        for (int ty = 0; ty << TiledCanvas.TILE_SHIFT < height; ty++) {
+            for (int tx = 0; tx << TiledCanvas.TILE_SHIFT < width; tx++) {
+                if (before.tile(ty * before.tilesX() + tx) == null && after.tile(ty * after.tilesX() + tx) == null)
+                    continue;
+                int endX = Math.min((tx + 1) << TiledCanvas.TILE_SHIFT, width);
+                int endY = Math.min((ty + 1) << TiledCanvas.TILE_SHIFT, height);
+                for (int y = ty << TiledCanvas.TILE_SHIFT; y < endY; y++) {
+                    for (int x = tx << TiledCanvas.TILE_SHIFT; x < endX; x++) {
+                        int color = after.get(x, y);
+                        if (before.get(x, y) != color) add(x, y, color);
+                    }
+                }
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    /**
+     * Encodes the collected changes as runs.
+     *
+     * @return The REGION payload.
+     */
+    byte[] encode() {
+        long[] sorted = Arrays.copyOf(keys, size);
+        Arrays.sort(sorted);
+
+        byte[] buf = new byte[4 + size * RUN_SIZE];
+        int runs = 0;
+        int off = 4;
+        int i = 0;
+        while (i < size) {
+            // the last entry for a cell wins
+            while (i + 1 < size && (sorted[i + 1] >>> 32) == (sorted[i] >>> 32)) i++;
+            int row = (int) (sorted[i] >>> 48);
+            int col = (int) (sorted[i] >>> 32) & 0xFFFF;
+            int color = colors[(int) sorted[i]];
+            int length = 1;
+            i++;
+            while (i < size && length < 0xFFFF) {
+                int j = i;
+                while (j + 1 < size && (sorted[j + 1] >>> 32) == (sorted[j] >>> 32)) j++;
+                if ((int) (sorted[j] >>> 48) != row || ((int) (sorted[j] >>> 32) & 0xFFFF) != col + length
+                        || colors[(int) sorted[j]] != color)
+                    break;
+                length++;
+                i = j + 1;
+            }
+            Protocol.putShort(buf, off, col);
+            Protocol.putShort(buf, off + 2, row);
+            Protocol.putShort(buf, off + 4, length);
+            Protocol.putInt(buf, off + 6, color);
+            off += RUN_SIZE;
+            runs++;
+        }
+        Protocol.putInt(buf, 0, runs);
+        return Arrays.copyOf(buf, off);
+    }
+
+    /**
+     * Decodes a REGION payload and hands every run to the visitor.
+     *
+     * @param buf The buffer containing the payload.
+     * @param len The length of the payload.
+     * @param visitor The visitor receiving the runs.
+     * @throws IllegalArgumentException If the payload is malformed.
+     */
+    static void decode(byte[] buf, int len, RunVisitor visitor) {
+        if (len < 4)
+            throw new IllegalArgumentException("Truncated region");
+        int runs = Protocol.getInt(buf, 0);
+        if (runs < 0 || 4 + (long) runs * RUN_SIZE > len)
+            throw new IllegalArgumentException("Truncated region");
+        int off = 4;
+        for (int r = 0; r < runs; r++) {
+            visitor.run(Protocol.getShort(buf, off), Protocol.getShort(buf, off + 2),
+                    Protocol.getShort(buf, off + 4), Protocol.getInt(buf, off + 6));
+            off += RUN_SIZE;
+        }
+    }
+
+    /**
+     * Applies a REGION payload to a canvas, clipping runs that fall outside of it.
+     *
+     * @param buf The buffer containing the payload.
+     * @param len The length of the payload.
+     * @param canvas The canvas to paint on.
+     */
+    static void apply(byte[] buf, int len, TiledCanvas canvas) {
+        decode(buf, len, canvas::setRun);
+    }
+}
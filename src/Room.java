@@ -0,0 +1,363 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Room class is one named drawing with its own canvas, members and chat channel.
+ * The canvas doubles as the room's lock, so updates in one room never wait for another room;
+ * chat goes through the room's Chat, which has a lock of its own and never waits for the drawing.
+ * Every drawing frame the room relays is numbered and kept in an op ring for a while, and members that
+ * speak protocol version 4 are regularly told the number of the last one in a SYNC frame; when such a
+ * member reconnects it is sent just the frames it missed, or a snapshot if they are no longer in the ring.
+ * On a replica node the room forwards its members' frames to the primary over a PeerLink and applies
+ * only what comes back, so it relays the same frames in the same order as the primary.
+ */
+public class Room {
+    /** How often members are sent a SYNC frame if something was drawn, in milliseconds. */
+    static final int SYNC_MILLIS = 200;
+
+    final String name;
+    /** Tells this instance of the room apart from earlier ones with the same name, whose sequence numbers mean nothing here. */
+    final long epoch = ThreadLocalRandom.current().nextLong() | 1;
+    ArrayList<Client> list = new ArrayList<>();
+    // copy of list for broadcasting without holding its lock
+    private volatile Client[] clients = new Client[0];
+    final TiledCanvas data;
+    // makes the canvas durable, or null if the server keeps rooms in memory only
+    private Journal journal;
+    // runs FILL frames on the canvas; guarded by the canvas lock
+    private final FloodFill fill = new FloodFill();
+    // batches drawing updates per tick, or null to relay every update right away
+    private BroadcastScheduler scheduler;
+    // the recently relayed drawing frames; guarded by the canvas lock
+    private final OpRing ops;
+    // the sequence number in the last SYNC frame
+    private long synced;
+    private final ScheduledFuture<?> syncTask;
+    // set under the canvas lock once the last member has left and the server drops the room
+    private boolean dropped;
+    // the link to the same room on the primary node, or null if this node is the primary
+    private PeerLink upstream;
+    final Metrics metrics;
+    final Chat chat;
+
+    /**
+     * @param name The name of the room.
+     * @param config The server options; a positive tick enables batched broadcasting.
+     * @param timer The timer shared by the schedulers of all rooms.
+     * @param committer The executor shared by the journals of all rooms.
+     * @param metrics The server's metrics.
+     */
+    Room(String name, ServerConfig config, ScheduledExecutorService timer, ScheduledExecutorService committer,
+            Metrics metrics) {
+        this.name = name;
+        this.metrics = metrics;
+        this.chat = new Chat(config);
+        TiledCanvas canvas = null;
+        if (config.journalDir != null) {
+            try {
+                journal = new Journal(new File(config.journalDir, fileName(name)), committer,
+                        config.journalCommitMillis, config.journalMaxLog);
+                canvas = journal.recover(config.width, config.height);
+            } catch (IOException e) {
+                System.err.printf("Unable to open the journal of room %s, keeping it in memory only: %s\n", name,
+                        e.getMessage());
+                if (journal != null) journal.close();
+                journal = null;
+            }
+        }
+        this.data = canvas != null ? canvas : new TiledCanvas(config.width, config.height);
+        if (config.tickMillis > 0)
+            scheduler = new BroadcastScheduler(this, data, timer, config.tickMillis, config.maxBatch);
+        ops = new OpRing(config.opRing, config.opRingBytes);
+        syncTask = timer.scheduleAtFixedRate(this::sync, SYNC_MILLIS, SYNC_MILLIS, TimeUnit.MILLISECONDS);
+        if (config.primaryHost != null) {
+            upstream = new PeerLink(this, config);
+            upstream.start();
+        }
+    }
+
+    /**
+     * Adds a client that finished its handshake to the broadcast list and sends it the current drawing:
+     * the frames it missed if it resumes from a sequence number that is still in the op ring, a snapshot otherwise.
+     * The recent chat messages follow the drawing.
+     *
+     * @param client The client that joined.
+     * @param hello What the client announced in its handshake.
+     * @return false if the room has been dropped since the client looked it up, so the client did not join.
+     */
+    boolean join(Client client, Protocol.Hello hello) {
+        synchronized (data) {
+            if (dropped) return false;
+            // only join the broadcast list once the handshake is done, so no frame can overtake the reply
+            synchronized (list) {
+                list.add(client);
+                clients = list.toArray(new Client[0]);
+                System.out.printf("Total %d clients are connected to room %s.\n", list.size(), name);
+            }
+            // taken under the canvas lock, so every op queued after it is newer than the snapshot
+            long start = System.nanoTime();
+            List<byte[]> missing = null;
+            if (client.version >= Protocol.RESUME_VERSION && hello.epoch == epoch) missing = ops.since(hello.seq);
+            if (missing != null) {
+                System.out.printf("Resuming %s in room %s from %d with %d frames.\n", client.name, name, hello.seq,
+                        missing.size());
+                for (byte[] frame : missing) {
+                    client.write(frame);
+                }
+            } else {
+                client.write(canvasFrame());
+            }
+            metrics.joinSnapshot.record(System.nanoTime() - start);
+            metrics.joined();
+            if (client.version >= Protocol.RESUME_VERSION)
+                client.write(Protocol.frame(Protocol.SYNC, Protocol.sync(epoch, ops.last()), Protocol.SYNC_SIZE));
+        }
+        chat.join(client);
+        return true;
+    }
+
+    /**
+     * Applies a frame received from a client to the drawing and relays it to every member,
+     * or on a replica forwards it to the primary, which relays it back. Chat messages go to the chat channel
+     * once they pass its limits. Clients may only send PIXEL, REGION, FILL and CHAT frames; anything else,
+     * such as a forged SNAPSHOT or SYNC, is dropped and never relayed.
+     *
+     * @param client The client that sent the frame.
+     * @param type The type of the frame.
+     * @param buffer The byte array containing the payload.
+     * @param len The length of the payload.
+     */
+    void handle(Client client, int type, byte[] buffer, int len) {
+        if (type == Protocol.CHAT) {
+            byte[] message = chat.check(client, buffer, len);
+            if (message == null) return;
+            if (upstream == null) chat.publish(message);
+            else if (!upstream.forward(type, message, message.length))
+                Chat.notice(client, "The primary server cannot be reached; your message was not sent.");
+            return;
+        }
+        if (!isDrawing(type)) return;
+        if (upstream != null) {
+            upstream.forward(type, buffer, len);
+            return;
+        }
+        apply(type, buffer, len);
+    }
+
+    /**
+     * Applies a drawing frame to the drawing and relays it to every member. Other frame types are ignored.
+     *
+     * @param type The type of the frame.
+     * @param buffer The byte array containing the payload.
+     * @param len The length of the payload.
+     */
+    void apply(int type, byte[] buffer, int len) {
+        if (!isDrawing(type)) return;
+        // applying and queueing under one lock gives every member the same order of updates
+        long start = System.nanoTime();
+        synchronized (data) {
+            metrics.lockWait.record(System.nanoTime() - start);
+            if (type == Protocol.PIXEL) {
+                if (len < Protocol.PIXEL_SIZE) return;
+                int col = Protocol.pixelCol(buffer, 0);
+                int row = Protocol.pixelRow(buffer, 0);
+                int color = Protocol.pixelColor(buffer, 0);
+                if (!data.contains(col, row)) return;
+                data.set(col, row, color);
+                if (journal != null) journal.append(type, buffer, len, data);
+                if (scheduler != null) {
+                    scheduler.mark(col, row);
+                    return;
+                }
+            }
+            if (type == Protocol.REGION) {
+                // apply the whole region at once so nobody sees half of a fill
+                try {
+                    Region.apply(buffer, len, data);
+                } catch (IllegalArgumentException e) {
+                    return;
+                }
+                if (journal != null) journal.append(type, buffer, len, data);
+                if (scheduler != null) {
+                    scheduler.markRegion(buffer, len);
+                    return;
+                }
+            }
+            if (type == Protocol.FILL) {
+                // filled here, in order with every other update, and relayed as the cells it changed
+                if (len < Protocol.PIXEL_SIZE) return;
+                if (fill.fill(data, Protocol.pixelCol(buffer, 0), Protocol.pixelRow(buffer, 0),
+                        Protocol.pixelColor(buffer, 0)) == 0)
+                    return;
+                publishRegion(fill.encode());
+                return;
+            }
+
+            publish(Protocol.frame(type, buffer, len));
+        }
+    }
+
+    private static boolean isDrawing(int type) {
+        return type == Protocol.PIXEL || type == Protocol.REGION || type == Protocol.FILL;
+    }
+
+    /**
+     * Makes the drawing equal to a canvas, relaying only the cells that differ.
+     * A replica uses it for the snapshots its primary sends.
+     *
+     * @param canvas The canvas to copy; cells outside the room's canvas are ignored.
+     */
+    void replace(TiledCanvas canvas) {
+        synchronized (data) {
+            Region changes = new Region();
+            changes.addChanges(data, canvas);
+            if (changes.isEmpty()) return;
+            byte[] region = changes.encode();
+            Region.apply(region, region.length, data);
+            publishRegion(region);
+        }
+    }
+
+    /**
+     * Journals and relays a region that has already been applied to the canvas. The caller holds the canvas lock.
+     *
+     * @param region The REGION payload, which may have more runs than fit in one frame.
+     */
+    private void publishRegion(byte[] region) {
+        if (journal != null) journal.append(Protocol.REGION, region, region.length, data);
+        if (scheduler != null) {
+            scheduler.markRegion(region, region.length);
+            return;
+        }
+        for (byte[] frame : Protocol.regionFrames(region)) {
+            publish(frame);
+        }
+    }
+
+    /**
+     * Removes a disconnected client. The drawing is cleared once the last member has left,
+     * unless it is journaled, in which case it stays on disk for the next member.
+     *
+     * @param client The client that left.
+     * @return true if the client was the last member, so the room is now dropped.
+     */
+    boolean leave(Client client) {
+        chat.leave(client);
+        synchronized (data) {
+            synchronized (list) {
+                // a client the room refused never joined, and must not drop the room
+                if (!list.remove(client)) return false;
+                clients = list.toArray(new Client[0]);
+                if (list.size() > 0) return false;
+            }
+            if (journal == null) data.clear();
+            dropped = true;
+            return true;
+        }
+    }
+
+    /**
+     * Stops the room's scheduler, link and journal once the room has been dropped.
+     */
+    void close() {
+        syncTask.cancel(false);
+        if (upstream != null) upstream.close();
+        if (scheduler != null) scheduler.stop();
+        if (journal != null) journal.close();
+    }
+
+    /**
+     * @param name The name of a room.
+     * @return A directory name for the room's journal that is safe on every file system.
+     */
+    private static String fileName(String name) {
+        try {
+            return URLEncoder.encode(name, "UTF-8").replace("*", "%2A").replace(".", "%2E");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    int size() {
+        return clients.length;
+    }
+
+    /**
+     * @return The current members; the array must not be modified.
+     */
+    Client[] members() {
+        return clients;
+    }
+
+    /**
+     * Sends every member a snapshot of the canvas. Used on a replica once its link to the primary is back,
+     * since drawing the members forwarded while it dropped may never have reached the primary.
+     */
+    void resync() {
+        synchronized (data) {
+            byte[] frame = canvasFrame();
+            for (Client client : clients) {
+                client.write(frame);
+            }
+        }
+    }
+
+    /**
+     * Encodes the whole canvas as a single SNAPSHOT frame.
+     *
+     * @return The encoded frame, header included.
+     */
+    byte[] canvasFrame() {
+        byte[] payload;
+        synchronized (data) {
+            payload = Snapshot.encode(data);
+        }
+        return Protocol.frame(Protocol.SNAPSHOT, payload, payload.length);
+    }
+
+    /**
+     * Queues an encoded frame for all members. Only the per-client queues are touched here;
+     * each client's writer does the actual I/O. The caller holds the canvas lock.
+     *
+     * @param frame The encoded frame, header included.
+     */
+    void broadcast(byte[] frame) {
+        long start = System.nanoTime();
+        for (Client client : clients) {
+            client.write(frame);
+        }
+        metrics.fanout.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Numbers a drawing frame, keeps it in the op ring and queues it for all members. The caller holds the canvas lock.
+     *
+     * @param frame The encoded PIXEL or REGION frame, header included.
+     */
+    void publish(byte[] frame) {
+        ops.add(frame);
+        broadcast(frame);
+    }
+
+    /**
+     * Tells the members that speak version 4 the sequence number of the last drawing frame, if it changed.
+     */
+    private void sync() {
+        synchronized (data) {
+            if (ops.last() == synced) return;
+            synced = ops.last();
+            byte[] frame = Protocol.frame(Protocol.SYNC, Protocol.sync(epoch, synced), Protocol.SYNC_SIZE);
+            for (Client client : clients) {
+                if (client.version >= Protocol.RESUME_VERSION) client.write(frame);
+            }
+        }
+    }
+}
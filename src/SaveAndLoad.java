@@ -1,51 +1,214 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
+/**
+ * The SaveAndLoad class reads and writes drawing files.
+ * A drawing file starts with the magic "KPNT", a format version byte, a codec byte (0 stored, 1 deflate),
+ * the width and height as ints and the int length of the uncompressed body. The body is the drawing
+ * encoded like a SNAPSHOT payload, i.e. per-tile palettes and runs, so the file size grows with what
+ * is drawn rather than with the size of the canvas. Files of the legacy format, which has no magic and
+ * stores every pixel as an int column by column, can still be loaded.
+ * Neither method touches Swing, so both can be called from a background thread.
+ */
 public class SaveAndLoad {
-    static int row;
-    static int col;
+    static final int MAGIC = 0x4B504E54;
+    static final int FORMAT_VERSION = 1;
+    static final int HEADER_SIZE = 18;
+    static final int CODEC_STORED = 0;
+    static final int CODEC_DEFLATE = 1;
+    private static final int CHUNK_SIZE = 1 << 16;
 
     /**
-     * Saves the drawing data to a file.
+     * Receives the progress of a save or load.
+     */
+    interface Progress {
+        /**
+         * @param percent The part of the work that is done, from 0 to 100.
+         */
+        void update(int percent);
+    }
+
+    private SaveAndLoad() {
+    }
+
+    /**
+     * Saves a drawing to a file. The file is written next to the target and moved over it once complete,
+     * so a failed save never leaves a truncated drawing behind.
      *
      * @param path The file path to save the data to.
-     * @param data The drawing data to be saved.
+     * @param data The drawing to be saved. The caller must not modify it while it is being saved.
+     * @param progress Receives the progress, or null.
      * @throws IOException If an I/O error occurs while saving the data.
      */
-    static void save(final String path, final int[][]data) throws IOException {
-        int[][] drawing = data;
-        DataOutputStream out = new DataOutputStream(new FileOutputStream(path));
-
-        out.writeInt(drawing.length);
-        out.writeInt(drawing[0].length);
-        for (int i = 0; i < drawing.length; i++) {
-            for (int j = 0; j < drawing[i].length; j++) {
-                out.writeInt(drawing[i][j]);
+    static void save(final String path, final TiledCanvas data, final Progress progress) throws IOException {
+        byte[] body = Snapshot.encode(data);
+        report(progress, 10);
+
+        Path target = Paths.get(path).toAbsolutePath();
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).put((byte) FORMAT_VERSION).put((byte) CODEC_DEFLATE)
+                    .putInt(data.width()).putInt(data.height()).putInt(body.length);
+            header.flip();
+            writeFully(out, header);
+
+            byte[] chunk = new byte[CHUNK_SIZE];
+            for (int off = 0; off < body.length; off += CHUNK_SIZE) {
+                deflater.setInput(body, off, Math.min(CHUNK_SIZE, body.length - off));
+                while (!deflater.needsInput()) {
+                    writeFully(out, ByteBuffer.wrap(chunk, 0, deflater.deflate(chunk)));
+                }
+                report(progress, 10 + (int) (85L * (off + CHUNK_SIZE) / Math.max(body.length, 1)));
             }
+            deflater.finish();
+            while (!deflater.finished()) {
+                writeFully(out, ByteBuffer.wrap(chunk, 0, deflater.deflate(chunk)));
+            }
+        } finally {
+            deflater.end();
         }
-        out.flush();
-        out.close();
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+        report(progress, 100);
     }
 
     /**
-     * Loads a drawing from a file.
-     * 
+     * Loads a drawing from a file of the current or the legacy format. The file is memory-mapped
+     * rather than read through a stream.
+     *
      * @param path the path of the file to load
-     * @return the loaded drawing as a 2D array of integers
-     * @throws IOException if an I/O error occurs while reading the file
+     * @param progress receives the progress, or null
+     * @return the loaded drawing
+     * @throws IOException if an I/O error occurs or the file is not a valid drawing
      */
-    static int[][] load(final String path) throws IOException {
-        DataInputStream in  = new DataInputStream(new FileInputStream(path));
-        row = in.readInt();
-        col = in.readInt();
-
-        int[][] drawing = new int[row][col];
-        for (int i = 0; i < drawing.length; i++) {
-            for (int j = 0; j < drawing[i].length; j++) {
-                drawing[i][j] = in.readInt();
+    static TiledCanvas load(final String path, final Progress progress) throws IOException {
+        try (FileChannel in = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            MappedByteBuffer buf = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            TiledCanvas drawing;
+            if (buf.remaining() >= 4 && buf.getInt(0) == MAGIC) {
+                drawing = loadCurrent(buf, progress);
+            } else {
+                drawing = loadLegacy(buf, progress);
             }
+            report(progress, 100);
+            return drawing;
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid drawing file: " + e.getMessage());
+        }
+    }
+
+    private static TiledCanvas loadCurrent(ByteBuffer buf, Progress progress) throws IOException {
+        if (buf.remaining() < HEADER_SIZE)
+            throw new IOException("Truncated drawing file");
+        buf.position(4);
+        int version = buf.get();
+        int codec = buf.get();
+        int width = buf.getInt();
+        int height = buf.getInt();
+        int length = buf.getInt();
+        if (version != FORMAT_VERSION)
+            throw new IOException("Unknown drawing file version " + version);
+        if (width < 1 || height < 1 || width > TiledCanvas.MAX_SIZE || height > TiledCanvas.MAX_SIZE)
+            throw new IOException("Invalid drawing file size " + width + "x" + height);
+        // checked before allocating anything, so a corrupt header cannot ask for gigabytes
+        if (length < 0 || length > Snapshot.maxSize(width, height))
+            throw new IOException("Invalid drawing file length");
+
+        byte[] body;
+        if (codec == CODEC_STORED) {
+            if (buf.remaining() < length)
+                throw new IOException("Truncated drawing file");
+            body = new byte[length];
+            buf.get(body);
+        } else if (codec == CODEC_DEFLATE) {
+            body = inflate(buf, length, progress);
+        } else {
+            throw new IOException("Unknown drawing file codec " + codec);
         }
 
-        in.close();
+        TiledCanvas drawing = Snapshot.decode(body, body.length);
+        if (drawing.width() != width || drawing.height() != height)
+            throw new IOException("Drawing file header does not match its body");
         return drawing;
     }
-}
\ No newline at end of file
+
+    /**
+     * Inflates the body into a buffer that grows with what the file actually holds, up to the length its
+     * header claims, so a short file never costs a buffer of that length.
+     */
+    private static byte[] inflate(ByteBuffer buf, int length, Progress progress) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            byte[] chunk = new byte[CHUNK_SIZE];
+            byte[] body = new byte[Math.min(length, CHUNK_SIZE)];
+            int start = buf.position();
+            int total = buf.remaining();
+            int off = 0;
+            while (off < length) {
+                if (off == body.length)
+                    body = Arrays.copyOf(body, (int) Math.min(length, 2L * body.length));
+                if (inflater.needsInput()) {
+                    if (!buf.hasRemaining())
+                        throw new IOException("Truncated drawing file");
+                    int n = Math.min(chunk.length, buf.remaining());
+                    buf.get(chunk, 0, n);
+                    inflater.setInput(chunk, 0, n);
+                    report(progress, (int) (90L * (buf.position() - start) / Math.max(total, 1)));
+                }
+                int n = inflater.inflate(body, off, body.length - off);
+                if (n == 0 && inflater.finished())
+                    throw new IOException("Truncated drawing file");
+                off += n;
+            }
+            return body;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt drawing file: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static TiledCanvas loadLegacy(ByteBuffer buf, Progress progress) throws IOException {
+        if (buf.remaining() < 8)
+            throw new IOException("Truncated drawing file");
+        int width = buf.getInt();
+        int height = buf.getInt();
+        TiledCanvas drawing = new TiledCanvas(width, height);
+        IntBuffer pixels = buf.asIntBuffer();
+        if (pixels.remaining() < (long) width * height)
+            throw new IOException("Truncated drawing file");
+
+        // the legacy format stores the pixels column by column
+        for (int i = 0; i < width; i++) {
+            for (int j = 0; j < height; j++) {
+                drawing.set(i, j, pixels.get());
+            }
+            report(progress, (int) (90L * (i + 1) / width));
+        }
+        return drawing;
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+
+    private static void report(Progress progress, int percent) {
+        if (progress != null) progress.update(Math.min(percent, 100));
+    }
+}
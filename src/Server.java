@@ -1,61 +1,135 @@
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-
-class Client {
-    String name;
-    Socket socket;
-}
+import java.nio.charset.StandardCharsets;
 
 public class Server {
     ServerSocket serverSocket;
-    ArrayList<Client> list = new ArrayList<>();
-    int[][] data = new int[50][50];
+    final HashMap<String, Room> rooms = new HashMap<>();
+    final ServerConfig config;
+    // runs the broadcast ticks of every room
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "broadcast-scheduler");
+        t.setDaemon(true);
+        return t;
+    });
+    // runs the group commits of every room's journal, so an fsync never holds up a broadcast tick
+    private final ScheduledExecutorService committer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "journal-committer");
+        t.setDaemon(true);
+        return t;
+    });
+    final Metrics metrics = new Metrics(this);
+    // names announced over UDP, waiting for their connection to be accepted
+    private final Map<InetAddress, String> pendingNames = new HashMap<>();
+    // rooms being created, completed once their journal is recovered; guarded by rooms
+    private final Map<String, CompletableFuture<Room>> opening = new HashMap<>();
+    // dropped rooms, completed once the committer has closed their journal; guarded by rooms
+    private final Map<String, CompletableFuture<Void>> closing = new HashMap<>();
+
+    public Server() throws IOException {
+        this(new ServerConfig());
+    }
 
     /**
      * The Server class represents a server that listens for incoming connections and handles client requests.
-     * It uses a DatagramSocket to receive messages from clients and a ServerSocket to accept TCP connections.
-     * When a client connects, a new thread is created to handle the client's requests.
+     * It uses a DatagramSocket to answer discovery packets and a ServerSocket to accept TCP connections,
+     * each on its own thread, so neither waits for the other. With the classic engine an acceptor thread creates
+     * a new thread to handle each client's requests; with the nio engine connections are accepted and served
+     * by a NioEngine instead. The constructor does not return: the calling thread answers discovery packets.
+     * Several servers form a cluster when all but one are started with --primary pointing at that one; each serves
+     * its own clients, and since every server reports its own load in discovery replies, clients spread over them.
      */
-    public Server() throws IOException {
-        String message = "8080";
-        DatagramSocket socket = new DatagramSocket(5555);
-        DatagramPacket packet;
-        DatagramPacket receivedPacket = new DatagramPacket(new byte[1024], 1024);
+    public Server(ServerConfig config) throws IOException {
+        this.config = config;
+        if (config.journalDir != null) {
+            // make the last group commit of every open room durable on a normal shutdown
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                synchronized (rooms) {
+                    for (Room room : rooms.values()) {
+                        room.close();
+                    }
+                }
+            }));
+        }
+        metrics.register();
+        if (config.metricsPort > 0) metrics.serve(config.metricsPort);
+        // shared, so that every node of a cluster on one host hears broadcast discovery requests
+        DatagramSocket socket = new DatagramSocket(null);
+        socket.setReuseAddress(true);
+        socket.bind(new InetSocketAddress(Protocol.DISCOVERY_PORT));
 
-        serverSocket = new ServerSocket(8080);
+        if (config.engine.equals("nio")) {
+            NioEngine engine = new NioEngine(this, config.port, config.threads);
+            engine.start();
+        } else {
+            serverSocket = new ServerSocket(config.port);
+            // accepting runs on its own thread, so a discovery packet never waits for a connection or the other way round
+            Thread acceptor = new Thread(this::acceptLoop, "acceptor");
+            acceptor.start();
+        }
+        discoveryLoop(socket);
+    }
 
+    /**
+     * Answers discovery packets. Every packet is answered right away with a unicast reply to its sender:
+     * a client that sent a discovery request (see Protocol.discoveryRequest) is told the port, protocol version,
+     * number of connected clients and room names, and an older client that sent just its name is told the port.
+     *
+     * @param socket The socket bound to the discovery port.
+     * @throws IOException If the socket fails.
+     */
+    private void discoveryLoop(DatagramSocket socket) throws IOException {
+        DatagramPacket receivedPacket = new DatagramPacket(new byte[1024], 1024);
+        System.out.println("Listening...");
         while (true) {
-            System.out.println("Listening...");
-
             socket.receive(receivedPacket);
-            String content = new String(receivedPacket.getData(), 0, receivedPacket.getLength());
-
-            if (content != null) {
-                int port = receivedPacket.getPort();
-                packet = new DatagramPacket(message.getBytes(), message.length(), InetAddress.getByName("255.255.255.255"),
-                        port);
-                System.out.println(receivedPacket.getAddress());
-                System.out.println(receivedPacket.getPort());
-                socket.send(packet);
-
-                Socket cSocket = serverSocket.accept();
+            String content = new String(receivedPacket.getData(), 0, receivedPacket.getLength(), StandardCharsets.UTF_8);
+            String name = Protocol.discoveryName(content);
+            String reply = name != null ? Protocol.discoveryReply(config.port, clientCount(), roomNames())
+                    : String.valueOf(config.port);
+            if (name == null) name = content;
+            System.out.printf("Discovery from %s (%s)\n", receivedPacket.getSocketAddress(), name);
+            synchronized (pendingNames) {
+                pendingNames.put(receivedPacket.getAddress(), name);
+            }
+            byte[] bytes = reply.getBytes(StandardCharsets.UTF_8);
+            socket.send(new DatagramPacket(bytes, bytes.length, receivedPacket.getSocketAddress()));
+        }
+    }
 
+    /**
+     * Accepts connections for the classic engine and serves each on its own thread.
+     */
+    private void acceptLoop() {
+        while (true) {
+            Socket cSocket;
+            try {
+                cSocket = serverSocket.accept();
+            } catch (IOException e) {
+                System.err.println("Accept failed: " + e.getMessage());
+                continue;
+            }
+            try {
                 System.out.println(cSocket.getInetAddress().toString());
                 Client client = new Client();
-                client.name = content;
+                client.name = takePendingName(cSocket.getInetAddress());
                 client.socket = cSocket;
-
-                synchronized (list) {
-                    list.add(client);
-                    System.out.printf("Total %d clients are connected.\n", list.size());
-                }
+                client.out = new DataOutputStream(new BufferedOutputStream(cSocket.getOutputStream()));
+                client.queue = newQueue(client);
 
                 Thread t = new Thread(() -> {
                     try {
@@ -63,18 +137,16 @@ public class Server {
                     } catch (IOException e) {
                         System.err.println("connection dropped.");
                     }
-                    synchronized (list) {
-                        list.remove(client);
-                        if (list.size() == 0) {
-                            for (int i = 0; i < data.length; i++) {
-                                for (int j = 0; j < data[0].length; j++) {
-                                    data[i][j] = 0;
-                                }
-                            }
-                        }
-                    }
+                    client.close();
+                    leave(client);
                 });
                 t.start();
+            } catch (IOException e) {
+                System.err.println("connection dropped.");
+                try {
+                    cSocket.close();
+                } catch (IOException e1) {
+                }
             }
         }
     }
@@ -93,68 +165,207 @@ public class Server {
         System.out.printf("Established a connection to host %s:%d\n\n", clientSocket.getInetAddress(),
                 clientSocket.getPort());
 
-        DataInputStream in = new DataInputStream(clientSocket.getInputStream());
-        DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream());
-        if (list.size() > 1) {
-            for (int i = 0; i < data.length; i++) {
-                for (int j = 0; j < data[0].length; j++) {
-                    out.writeInt(0);
-                    String p = i + " " + j + " " + data[i][j];
-                    out.writeInt(p.length());
-                    out.write(p.getBytes(), 0, p.length());
-                }
-            }
-        }
+        // buffered, so reading a header is not a system call per byte
+        DataInputStream in = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+        DataOutputStream out = client.out;
+        Protocol.Hello hello = Protocol.serverHandshake(in, out, config.compression);
+        client.version = hello.version;
+        if (hello.name != null) client.name = hello.name;
+        if (hello.compress) client.encoder = new Compression.Encoder(config.compressMin, metrics);
+
+        join(client, hello);
+        // started after joining, so a refusal can be written straight to the stream
+        new Thread(client::drain).start();
         while (true) {
             type = in.readInt();
             len = in.readInt();
-            in.read(buffer, 0, len);
-            if (type == 0) {
-                String content = new String(buffer, 0, len);
-                String[] p = content.split(" ");
-                int col = Integer.parseInt(p[0]);
-                int row = Integer.parseInt(p[1]);
-                int color = Integer.parseInt(p[2]);
-                data[col][row] = color;
+            buffer = Protocol.readPayload(in, buffer, len, Protocol.MAX_CLIENT_FRAME_SIZE);
+            handle(client, type, buffer, len);
+            buffer = Protocol.shrink(buffer);
+        }
+    }
 
+    /**
+     * Puts a client that finished its handshake into a room, creating the room if it does not exist yet.
+     * The rooms lock is only held to look the room up; a room dropped before the client got in refuses it,
+     * and the client looks the room up again. A peer link is only accepted from an address listed in --peers;
+     * any other is told so and turned away, rather than served as an ordinary client whose chat notices the
+     * replica would relay to all of its members.
+     *
+     * @param client The client that joined.
+     * @param hello What the client announced in its handshake, including the name of the room.
+     * @throws IOException If the client is a peer link that is not trusted.
+     */
+    void join(Client client, Protocol.Hello hello) throws IOException {
+        if (hello.name != null && hello.name.startsWith(Protocol.PEER_PREFIX)) {
+            // the name alone proves nothing; only links from the configured replicas are trusted
+            if (!config.peers.contains(client.address())) {
+                System.err.printf("Refused the peer link from %s, which is not listed in --peers.\n", client.address());
+                client.refuse("Peer links are only accepted from the addresses listed in --peers.");
+                throw new IOException("Untrusted peer link");
             }
+            client.peer = true;
+        }
+        do {
+            client.room = open(hello.room);
+        } while (!client.room.join(client, hello));
+    }
 
-            send(buffer, len, type);
+    /**
+     * Looks up a room, creating it if it does not exist yet. The thread that creates a room recovers its
+     * journal without holding the rooms lock, after the journal of a dropped room of the same name is closed;
+     * other clients joining the room meanwhile wait for it, and clients of other rooms are not held up.
+     *
+     * @param name The name of the room.
+     * @return The room.
+     */
+    private Room open(String name) {
+        CompletableFuture<Room> opened;
+        CompletableFuture<Void> closed;
+        boolean create = false;
+        synchronized (rooms) {
+            Room room = rooms.get(name);
+            if (room != null) return room;
+            opened = opening.get(name);
+            if (opened == null) {
+                opened = new CompletableFuture<>();
+                opening.put(name, opened);
+                create = true;
+            }
+            closed = closing.get(name);
         }
+        if (!create) return opened.join();
+        Room room = null;
+        try {
+            if (closed != null) closed.join();
+            room = new Room(name, config, timer, committer, metrics);
+        } finally {
+            synchronized (rooms) {
+                opening.remove(name);
+                if (room != null) rooms.put(name, room);
+            }
+            if (room != null) opened.complete(room);
+            else opened.completeExceptionally(new IllegalStateException("Unable to open room " + name));
+        }
+        return room;
     }
 
     /**
-     * Sends the specified data to all connected clients.
+     * Passes a frame received from a client on to the client's room, decompressing it first if it is compressed.
+     * The caller gives up its own buffer after a long frame; the decoder's is given up here.
      *
-     * @param data The byte array containing the data to be sent.
-     * @param len The length of the data to be sent.
-     * @param type The type of the data to be sent.
+     * @param client The client that sent the frame.
+     * @param type The type of the frame.
+     * @param buffer The byte array containing the payload.
+     * @param len The length of the payload.
+     * @throws IOException If a compressed frame is malformed.
      */
-    private void send(byte[] data, int len, int type) {
-        synchronized (list) {
-            for (int i = 0; i < list.size(); i++) {
-                try {
-                    Client client = list.get(i);
-                    Socket socket = client.socket;
-                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-                    out.writeInt(type);
-                    out.writeInt(len);
-                    out.write(data, 0, len);
-                } catch (IOException e) {
-                }
+    void handle(Client client, int type, byte[] buffer, int len) throws IOException {
+        Compression.Decoder decoder = null;
+        if (type == Protocol.COMPRESSED) {
+            if (client.decoder == null)
+                client.decoder = new Compression.Decoder(Protocol.MAX_CLIENT_FRAME_SIZE, metrics);
+            decoder = client.decoder;
+            decoder.decode(buffer, len);
+            type = decoder.type;
+            buffer = decoder.payload;
+            len = decoder.len;
+        }
+        metrics.received(type, len);
+        client.room.handle(client, type, buffer, len);
+        if (decoder != null) decoder.payload = Protocol.shrink(decoder.payload);
+    }
+
+    /**
+     * Removes a disconnected client from its room. A room is dropped once its last member has left and closed
+     * on the journal committer, so the final fsync never holds the lock every join and leave needs;
+     * a journaled room is recovered from disk when someone joins it again. The room refuses joins as soon as
+     * it is dropped, so it is only taken out of the rooms map afterwards.
+     *
+     * @param client The client that left.
+     */
+    void leave(Client client) {
+        Room room = client.room;
+        if (room == null) return;
+        if (!room.leave(client)) return;
+        CompletableFuture<Void> closed = new CompletableFuture<>();
+        synchronized (rooms) {
+            rooms.remove(room.name, room);
+            closing.put(room.name, closed);
+        }
+        committer.execute(() -> {
+            room.close();
+            synchronized (rooms) {
+                closing.remove(room.name, closed);
             }
+            closed.complete(null);
+        });
+    }
+
+    /**
+     * @return The number of clients in all rooms.
+     */
+    int clientCount() {
+        int count = 0;
+        synchronized (rooms) {
+            for (Room room : rooms.values()) {
+                count += room.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The names of the rooms that currently have members.
+     */
+    String[] roomNames() {
+        synchronized (rooms) {
+            return rooms.keySet().toArray(new String[0]);
         }
     }
 
+    /**
+     * Returns the name a host announced in its last discovery packet.
+     * Only used until the handshake, which carries the name for clients of version 2 and later.
+     *
+     * @param address The address of the host.
+     * @return The announced name, or the address itself if the host never announced one.
+     */
+    String takePendingName(InetAddress address) {
+        synchronized (pendingNames) {
+            String name = pendingNames.remove(address);
+            return name != null ? name : address.getHostAddress();
+        }
+    }
+
+    /**
+     * Creates the outbound queue for a new client from the configured capacity and slow-consumer policy.
+     *
+     * @param client The client the queue belongs to.
+     * @return The new queue.
+     */
+    OutboundQueue newQueue(Client client) {
+        return new OutboundQueue(config.queueCapacity, config.slowConsumer, () -> client.room.canvasFrame(), metrics);
+    }
+
     /**
      * The main method is the entry point of the program.
      * It creates a new instance of the Server class and handles any IOException that may occur.
      *
-     * @param args The command line arguments passed to the program.
+     * @param args The command line arguments passed to the program, see ServerConfig.
      */
     public static void main(String[] args) {
         try {
-            new Server();
+            new Server(ServerConfig.parse(args));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java Server [--engine=classic|nio] [--port=8080] [--threads=N] [--queue=N]"
+                    + " [--slow-consumer=resync|coalesce|disconnect] [--tick=ms] [--max-batch=cells]"
+                    + " [--width=cells] [--height=cells] [--journal=dir] [--journal-commit=ms]"
+                    + " [--journal-max-log=bytes] [--op-ring=frames] [--op-ring-bytes=bytes] [--primary=host:port]"
+                    + " [--metrics-port=port] [--chat-history=messages] [--chat-max=bytes] [--chat-rate=per-second]"
+                    + " [--chat-burst=messages] [--compression=on|off] [--compress-min=bytes]"
+                    + " [--peers=host,...]");
         } catch (IOException e) {
             System.err.println("System error: " + e.getMessage());
         }
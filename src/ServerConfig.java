@@ -0,0 +1,197 @@
+import java.io.File;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The ServerConfig class holds the startup options of the Server.
+ * Options are given on the command line as --name=value, e.g. "java Server --engine=nio --threads=2".
+ */
+public class ServerConfig {
+    /** "classic" for one thread per client, "nio" for the selector-based engine. */
+    String engine = "classic";
+    int port = 8080;
+    /** Number of event-loop threads used by the nio engine. */
+    int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    /** Maximum number of frames waiting to be written to one client. */
+    int queueCapacity = 1024;
+    /** What to do with a client whose queue is full. */
+    OutboundQueue.Policy slowConsumer = OutboundQueue.Policy.RESYNC;
+    /** Length of a broadcast tick in milliseconds, or 0 to relay every drawing update right away. */
+    int tickMillis = 0;
+    /** Maximum number of cells in one batched REGION frame. */
+    int maxBatch = 4096;
+    /** Size of the canvas of every room, in cells. */
+    int width = 50;
+    int height = 50;
+    /** Maximum number of recent drawing frames a room keeps for clients that reconnect. */
+    int opRing = 4096;
+    /** Maximum number of bytes of recent drawing frames a room keeps. */
+    long opRingBytes = 4 << 20;
+    /** Directory the rooms are journaled to, or null to keep them in memory only. */
+    File journalDir = null;
+    /** Interval between two fsyncs of a journal, in milliseconds; at most this much drawing is lost in a crash. */
+    int journalCommitMillis = 50;
+    /** Size in bytes a journal log may reach before the canvas is snapshotted and the log restarted. */
+    long journalMaxLog = 4 << 20;
+    /** The node this one replicates, given as --primary=host:port, or null if this node is a primary itself. */
+    String primaryHost = null;
+    int primaryPort;
+    /** The addresses of this node's replicas, whose peer links are trusted to carry already limited chat. */
+    List<InetAddress> peers = new ArrayList<>();
+    /** Port of the HTTP metrics endpoint on the loopback interface, or 0 for none. */
+    int metricsPort = 0;
+    /** Number of recent chat messages a room keeps for members that join. */
+    int chatHistory = 100;
+    /** Maximum length of one chat message in bytes of UTF-8. */
+    int chatMax = 16 * 1024;
+    /** Chat messages one member may send per second once its burst is used up. */
+    double chatRate = 5;
+    /** Chat messages one member may send at once. */
+    int chatBurst = 10;
+    /** Whether clients that ask for compression get it. */
+    boolean compression = true;
+    /** Size of the smallest frame compressed on a compressed connection, header included. */
+    int compressMin = Protocol.COMPRESS_MIN;
+
+    /**
+     * Parses the command line arguments into a ServerConfig.
+     *
+     * @param args The command line arguments.
+     * @return The parsed options, with defaults for everything not given.
+     * @throws IllegalArgumentException If an option is unknown or has an invalid value.
+     */
+    static ServerConfig parse(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0)
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            String name = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            switch (name) {
+                case "engine":
+                    if (!value.equals("classic") && !value.equals("nio"))
+                        throw new IllegalArgumentException("Unknown engine: " + value);
+                    config.engine = value;
+                    break;
+                case "port":
+                    config.port = Integer.parseInt(value);
+                    break;
+                case "threads":
+                    config.threads = Integer.parseInt(value);
+                    if (config.threads < 1)
+                        throw new IllegalArgumentException("threads must be at least 1");
+                    break;
+                case "queue":
+                    config.queueCapacity = Integer.parseInt(value);
+                    if (config.queueCapacity < 1)
+                        throw new IllegalArgumentException("queue must be at least 1");
+                    break;
+                case "slow-consumer":
+                    config.slowConsumer = OutboundQueue.Policy.valueOf(value.toUpperCase());
+                    break;
+                case "tick":
+                    config.tickMillis = Integer.parseInt(value);
+                    if (config.tickMillis < 0)
+                        throw new IllegalArgumentException("tick must not be negative");
+                    break;
+                case "max-batch":
+                    config.maxBatch = Integer.parseInt(value);
+                    if (config.maxBatch < 1)
+                        throw new IllegalArgumentException("max-batch must be at least 1");
+                    break;
+                case "width":
+                    config.width = Integer.parseInt(value);
+                    break;
+                case "height":
+                    config.height = Integer.parseInt(value);
+                    break;
+                case "op-ring":
+                    config.opRing = Integer.parseInt(value);
+                    if (config.opRing < 1)
+                        throw new IllegalArgumentException("op-ring must be at least 1");
+                    break;
+                case "op-ring-bytes":
+                    config.opRingBytes = Long.parseLong(value);
+                    if (config.opRingBytes < 1)
+                        throw new IllegalArgumentException("op-ring-bytes must be at least 1");
+                    break;
+                case "journal":
+                    config.journalDir = new File(value);
+                    break;
+                case "journal-commit":
+                    config.journalCommitMillis = Integer.parseInt(value);
+                    if (config.journalCommitMillis < 1)
+                        throw new IllegalArgumentException("journal-commit must be at least 1");
+                    break;
+                case "journal-max-log":
+                    config.journalMaxLog = Long.parseLong(value);
+                    if (config.journalMaxLog < 1)
+                        throw new IllegalArgumentException("journal-max-log must be at least 1");
+                    break;
+                case "metrics-port":
+                    config.metricsPort = Integer.parseInt(value);
+                    if (config.metricsPort < 0)
+                        throw new IllegalArgumentException("metrics-port must not be negative");
+                    break;
+                case "chat-history":
+                    config.chatHistory = Integer.parseInt(value);
+                    if (config.chatHistory < 0)
+                        throw new IllegalArgumentException("chat-history must not be negative");
+                    break;
+                case "chat-max":
+                    config.chatMax = Integer.parseInt(value);
+                    if (config.chatMax < 1 || config.chatMax > Protocol.MAX_CLIENT_FRAME_SIZE)
+                        throw new IllegalArgumentException(
+                                "chat-max must be between 1 and " + Protocol.MAX_CLIENT_FRAME_SIZE);
+                    break;
+                case "chat-rate":
+                    config.chatRate = Double.parseDouble(value);
+                    if (!(config.chatRate > 0))
+                        throw new IllegalArgumentException("chat-rate must be positive");
+                    break;
+                case "chat-burst":
+                    config.chatBurst = Integer.parseInt(value);
+                    if (config.chatBurst < 1)
+                        throw new IllegalArgumentException("chat-burst must be at least 1");
+                    break;
+                case "compression":
+                    if (!value.equals("on") && !value.equals("off"))
+                        throw new IllegalArgumentException("compression must be on or off");
+                    config.compression = value.equals("on");
+                    break;
+                case "compress-min":
+                    config.compressMin = Integer.parseInt(value);
+                    if (config.compressMin < 1)
+                        throw new IllegalArgumentException("compress-min must be at least 1");
+                    break;
+                case "peers":
+                    for (String host : value.split(",")) {
+                        try {
+                            config.peers.add(InetAddress.getByName(host.trim()));
+                        } catch (UnknownHostException e) {
+                            throw new IllegalArgumentException("Unknown peer: " + host);
+                        }
+                    }
+                    break;
+                case "primary":
+                    int colon = value.lastIndexOf(':');
+                    if (colon <= 0)
+                        throw new IllegalArgumentException("primary must be host:port");
+                    config.primaryHost = value.substring(0, colon);
+                    config.primaryPort = Integer.parseInt(value.substring(colon + 1));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        if (config.width < 1 || config.height < 1 || config.width > TiledCanvas.MAX_SIZE
+                || config.height > TiledCanvas.MAX_SIZE)
+            throw new IllegalArgumentException("width and height must be between 1 and " + TiledCanvas.MAX_SIZE);
+        if (config.primaryHost != null && config.journalDir != null)
+            throw new IllegalArgumentException("a replica keeps no journal; journal the primary instead");
+        return config;
+    }
+}
@@ -0,0 +1,179 @@
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+
+/**
+ * The Snapshot class encodes a whole canvas as one compact SNAPSHOT frame payload.
+ * The payload starts with a format version byte, the canvas width and height as unsigned shorts,
+ * the tile shift and a varint count of drawn tiles. Each drawn tile follows as its varint index,
+ * a palette (a varint count and one int per color) and its cells row by row as runs of
+ * (varint length, varint palette index). Blank tiles are left out, so the size grows with
+ * how much of the canvas is actually drawn, not with the size of the canvas.
+ */
+public class Snapshot {
+    static final int FORMAT_VERSION = 2;
+
+    private Snapshot() {
+    }
+
+    /**
+     * Encodes a canvas. The caller holds the canvas lock if the canvas is shared.
+     *
+     * @param canvas The canvas to encode.
+     * @return The SNAPSHOT payload.
+     */
+    static byte[] encode(TiledCanvas canvas) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int count = 0;
+        for (int i = 0; i < canvas.tilesX() * canvas.tilesY(); i++) {
+            int[] tile = canvas.tile(i);
+            if (tile == null || isBlank(tile)) continue;
+            writeVarint(body, i);
+            writeTile(body, tile);
+            count++;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(11 + body.size());
+        out.write(FORMAT_VERSION);
+        out.write(canvas.width() >>> 8);
+        out.write(canvas.width());
+        out.write(canvas.height() >>> 8);
+        out.write(canvas.height());
+        out.write(TiledCanvas.TILE_SHIFT);
+        writeVarint(out, count);
+        out.write(body.toByteArray(), 0, body.size());
+        return out.toByteArray();
+    }
+
+    /**
+     * @param width The width of a canvas.
+     * @param height The height of a canvas.
+     * @return The most bytes encode() can produce for a canvas of this size, in which every cell of every tile
+     *         is a run of a color of its own.
+     */
+    static long maxSize(int width, int height) {
+        long tiles = (long) ((width + TiledCanvas.TILE_SIZE - 1) >> TiledCanvas.TILE_SHIFT)
+                * ((height + TiledCanvas.TILE_SIZE - 1) >> TiledCanvas.TILE_SHIFT);
+        long cells = TiledCanvas.TILE_SIZE * TiledCanvas.TILE_SIZE;
+        // a varint index and palette count per tile, then a palette color and two varints per cell
+        return 11 + tiles * (10 + cells * (4 + 5 + 5));
+    }
+
+    /**
+     * Decodes a SNAPSHOT payload into a new canvas.
+     *
+     * @param buf The buffer containing the payload.
+     * @param len The length of the payload.
+     * @return The decoded canvas.
+     * @throws IllegalArgumentException If the payload is malformed or of an unknown format version.
+     */
+    static TiledCanvas decode(byte[] buf, int len) {
+        if (len < 6)
+            throw new IllegalArgumentException("Truncated snapshot");
+        if (buf[0] != FORMAT_VERSION)
+            throw new IllegalArgumentException("Unknown snapshot format " + buf[0]);
+        if (buf[5] != TiledCanvas.TILE_SHIFT)
+            throw new IllegalArgumentException("Unsupported tile size");
+        TiledCanvas canvas = new TiledCanvas(Protocol.getShort(buf, 1), Protocol.getShort(buf, 3));
+        int tileCount = canvas.tilesX() * canvas.tilesY();
+
+        int[] pos = {6};
+        int count = readVarint(buf, len, pos);
+        for (int t = 0; t < count; t++) {
+            int index = readVarint(buf, len, pos);
+            if (index < 0 || index >= tileCount)
+                throw new IllegalArgumentException("Invalid snapshot tile");
+            canvas.setTile(index, readTile(buf, len, pos));
+        }
+        canvas.takeDirtyTiles();
+        return canvas;
+    }
+
+    private static boolean isBlank(int[] tile) {
+        for (int color : tile) {
+            if (color != 0) return false;
+        }
+        return true;
+    }
+
+    private static void writeTile(ByteArrayOutputStream out, int[] tile) {
+        HashMap<Integer, Integer> indices = new HashMap<>();
+        ByteArrayOutputStream palette = new ByteArrayOutputStream();
+        ByteArrayOutputStream runs = new ByteArrayOutputStream();
+        int runColor = tile[0];
+        int runLength = 0;
+        for (int color : tile) {
+            if (color == runColor) {
+                runLength++;
+                continue;
+            }
+            writeRun(runs, palette, indices, runColor, runLength);
+            runColor = color;
+            runLength = 1;
+        }
+        writeRun(runs, palette, indices, runColor, runLength);
+
+        writeVarint(out, indices.size());
+        out.write(palette.toByteArray(), 0, palette.size());
+        out.write(runs.toByteArray(), 0, runs.size());
+    }
+
+    private static int[] readTile(byte[] buf, int len, int[] pos) {
+        int colors = readVarint(buf, len, pos);
+        if (colors < 0 || pos[0] + 4L * colors > len)
+            throw new IllegalArgumentException("Truncated snapshot");
+        int[] palette = new int[colors];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = Protocol.getInt(buf, pos[0]);
+            pos[0] += 4;
+        }
+
+        int[] tile = new int[TiledCanvas.TILE_SIZE * TiledCanvas.TILE_SIZE];
+        int cell = 0;
+        while (cell < tile.length) {
+            int length = readVarint(buf, len, pos);
+            int index = readVarint(buf, len, pos);
+            if (length <= 0 || length > tile.length - cell || index < 0 || index >= palette.length)
+                throw new IllegalArgumentException("Invalid snapshot run");
+            int color = palette[index];
+            for (int end = cell + length; cell < end; cell++) {
+                tile[cell] = color;
+            }
+        }
+        return tile;
+    }
+
+    private static void writeRun(ByteArrayOutputStream runs, ByteArrayOutputStream palette,
+            HashMap<Integer, Integer> indices, int color, int length) {
+        Integer index = indices.get(color);
+        if (index == null) {
+            index = indices.size();
+            indices.put(color, index);
+            palette.write(color >>> 24);
+            palette.write(color >>> 16);
+            palette.write(color >>> 8);
+            palette.write(color);
+        }
+        writeVarint(runs, length);
+        writeVarint(runs, index);
+    }
+
+    static void writeVarint(ByteArrayOutputStream out, int v) {
+        while ((v & ~0x7F) != 0) {
+            out.write((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+
+    static int readVarint(byte[] buf, int len, int[] pos) {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (pos[0] >= len)
+                throw new IllegalArgumentException("Truncated snapshot");
+            int b = buf[pos[0]++];
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+}
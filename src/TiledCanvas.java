@@ -0,0 +1,211 @@
+import java.util.BitSet;
+
+/**
+ * The TiledCanvas class stores the colors of a canvas in 64x64 tiles that are only allocated once
+ * something is drawn on them, so a large canvas costs memory in proportion to what is drawn.
+ * Tiles that changed are remembered as dirty until someone takes them, which lets snapshots,
+ * saves and repaints skip the parts of the canvas that did not change.
+ * The class is not thread-safe; shared canvases are guarded by synchronizing on the canvas itself.
+ */
+public class TiledCanvas {
+    static final int TILE_SHIFT = 6;
+    static final int TILE_SIZE = 1 << TILE_SHIFT;
+    static final int TILE_MASK = TILE_SIZE - 1;
+    /** The largest supported width and height, which keeps cell indices within an int. */
+    static final int MAX_SIZE = 16384;
+
+    private final int width;
+    private final int height;
+    private final int tilesX;
+    private final int tilesY;
+    // tile cells are stored row by row; a null tile is blank
+    private final int[][] tiles;
+    private final BitSet dirty = new BitSet();
+
+    /**
+     * Creates a blank canvas.
+     *
+     * @param width The number of columns.
+     * @param height The number of rows.
+     * @throws IllegalArgumentException If a dimension is not between 1 and MAX_SIZE.
+     */
+    public TiledCanvas(int width, int height) {
+        if (width < 1 || height < 1 || width > MAX_SIZE || height > MAX_SIZE)
+            throw new IllegalArgumentException("Invalid canvas size " + width + "x" + height);
+        this.width = width;
+        this.height = height;
+        this.tilesX = (width + TILE_MASK) >> TILE_SHIFT;
+        this.tilesY = (height + TILE_MASK) >> TILE_SHIFT;
+        this.tiles = new int[tilesX * tilesY][];
+    }
+
+    int width() {
+        return width;
+    }
+
+    int height() {
+        return height;
+    }
+
+    int tilesX() {
+        return tilesX;
+    }
+
+    int tilesY() {
+        return tilesY;
+    }
+
+    boolean contains(int col, int row) {
+        return col >= 0 && row >= 0 && col < width && row < height;
+    }
+
+    /**
+     * @param col The column of the cell.
+     * @param row The row of the cell.
+     * @return The color of the cell, 0 for blank cells.
+     */
+    int get(int col, int row) {
+        int[] tile = tiles[(row >> TILE_SHIFT) * tilesX + (col >> TILE_SHIFT)];
+        return tile == null ? 0 : tile[((row & TILE_MASK) << TILE_SHIFT) | (col & TILE_MASK)];
+    }
+
+    /**
+     * Sets the color of a cell, allocating its tile if needed.
+     *
+     * @param col The column of the cell.
+     * @param row The row of the cell.
+     * @param color The new color.
+     */
+    void set(int col, int row, int color) {
+        int index = (row >> TILE_SHIFT) * tilesX + (col >> TILE_SHIFT);
+        int[] tile = tiles[index];
+        if (tile == null) {
+            if (color == 0) return;
+            tile = tiles[index] = new int[TILE_SIZE * TILE_SIZE];
+        }
+        int cell = ((row & TILE_MASK) << TILE_SHIFT) | (col & TILE_MASK);
+        if (tile[cell] == color) return;
+        tile[cell] = color;
+        dirty.set(index);
+    }
+
+    /**
+     * Sets the color of a horizontal run of cells, clipped to the canvas.
+     *
+     * @param col The column of the first cell.
+     * @param row The row of the cells.
+     * @param length The number of cells.
+     * @param color The new color.
+     */
+    void setRun(int col, int row, int length, int color) {
+        if (row < 0 || row >= height) return;
+        int x = Math.max(col, 0);
+        int end = Math.min(col + length, width);
+        // one tile at a time, so each tile is looked up once per run instead of once per cell
+        while (x < end) {
+            int index = (row >> TILE_SHIFT) * tilesX + (x >> TILE_SHIFT);
+            int stop = Math.min(end, (x | TILE_MASK) + 1);
+            int[] tile = tiles[index];
+            if (tile == null) {
+                if (color == 0) {
+                    x = stop;
+                    continue;
+                }
+                tile = tiles[index] = new int[TILE_SIZE * TILE_SIZE];
+            }
+            boolean changed = false;
+            int cell = ((row & TILE_MASK) << TILE_SHIFT) | (x & TILE_MASK);
+            for (; x < stop; x++, cell++) {
+                if (tile[cell] != color) {
+                    tile[cell] = color;
+                    changed = true;
+                }
+            }
+            if (changed) dirty.set(index);
+        }
+    }
+
+    /**
+     * Counts the cells of a color in a row, starting at a cell and going left or right until another color or the edge.
+     *
+     * @param col The column of the first cell; may be outside the canvas, which counts as no cells.
+     * @param row The row of the cells.
+     * @param color The color to count.
+     * @param step 1 to go right, -1 to go left.
+     * @return The number of consecutive cells of the color.
+     */
+    int runLength(int col, int row, int color, int step) {
+        if (row < 0 || row >= height) return 0;
+        int x = col;
+        while (x >= 0 && x < width) {
+            int[] tile = tiles[(row >> TILE_SHIFT) * tilesX + (x >> TILE_SHIFT)];
+            // the last column of this tile in the direction of the scan
+            int edge = step > 0 ? Math.min(width - 1, x | TILE_MASK) : x & ~TILE_MASK;
+            if (tile == null) {
+                if (color != 0) break;
+                x = edge + step;
+                continue;
+            }
+            int cell = ((row & TILE_MASK) << TILE_SHIFT) | (x & TILE_MASK);
+            for (; ; x += step, cell += step) {
+                if (tile[cell] != color) return Math.abs(x - col);
+                if (x == edge) break;
+            }
+            x += step;
+        }
+        return Math.abs(x - col);
+    }
+
+    /**
+     * @param index The index of the tile, row of tiles by row of tiles.
+     * @return The cells of the tile row by row, or null if the tile is blank. The array must not be modified.
+     */
+    int[] tile(int index) {
+        return tiles[index];
+    }
+
+    /**
+     * Replaces a whole tile.
+     *
+     * @param index The index of the tile.
+     * @param cells The cells of the tile row by row, or null for a blank tile. The canvas takes ownership of the array.
+     */
+    void setTile(int index, int[] cells) {
+        tiles[index] = cells;
+        dirty.set(index);
+    }
+
+    /**
+     * Makes every cell blank and releases all tiles.
+     */
+    void clear() {
+        for (int i = 0; i < tiles.length; i++) {
+            if (tiles[i] != null) {
+                tiles[i] = null;
+                dirty.set(i);
+            }
+        }
+    }
+
+    /**
+     * Returns the tiles that changed since the last call and forgets them.
+     *
+     * @return The indices of the changed tiles.
+     */
+    BitSet takeDirtyTiles() {
+        BitSet changed = (BitSet) dirty.clone();
+        dirty.clear();
+        return changed;
+    }
+
+    /**
+     * @return A deep copy of the canvas. Blank tiles stay unallocated in the copy.
+     */
+    TiledCanvas copy() {
+        TiledCanvas copy = new TiledCanvas(width, height);
+        for (int i = 0; i < tiles.length; i++) {
+            if (tiles[i] != null) copy.tiles[i] = tiles[i].clone();
+        }
+        return copy;
+    }
+}
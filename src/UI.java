@@ -2,23 +2,26 @@ import javax.swing.*;
 import java.awt.BorderLayout;
 import java.awt.Dimension;
 import java.awt.Point;
-import java.awt.RenderingHints;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
 import java.net.Socket;
-import java.util.LinkedList;
-import java.util.List;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.awt.FlowLayout;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Color;
-import java.util.Stack;
 import javax.swing.border.LineBorder;
 
 enum PaintMode {Pixel, Area};
@@ -30,6 +33,12 @@ public class UI extends JFrame {
 	private JTextArea chatArea;
 	private JPanel pnlColorPicker;
 	private JPanel paintPanel;
+	private CanvasRenderer renderer;
+	// applies received updates on the EDT in batches with one repaint per batch;
+	// -Dkidpaint.dispatchStats=true prints its counters every 5 seconds
+	private final UpdateDispatcher updates = new UpdateDispatcher(() -> {
+		if (renderer != null) renderer.sync();
+	});
 	private JToggleButton penToggleButton;
 	private JToggleButton bucketToggleButton;
 	private JToggleButton eraserToggleButton;
@@ -41,16 +50,81 @@ public class UI extends JFrame {
 
 	private boolean eraserMode = false;
 	String name;
-	DataOutputStream out;
+	volatile DataOutputStream out;
+	// the protocol version agreed with the server
+	private volatile int version;
+	private final String serverIP;
+	private final int port;
+	private final String room;
+	// the room epoch and sequence number of the last SYNC frame, offered to the server when reconnecting
+	private long syncEpoch;
+	private long syncSeq;
+	// the last chat message shown, so the history sent after reconnecting is not shown twice; receive thread only
+	private String lastChat;
 	private static UI instance;
 	private int selectedColor = -543230;
-	int[][] panel = new int[50][50];
+	TiledCanvas panel = new TiledCanvas(50, 50);
 	int blockSize = 16;
-	private Stack<int[][]> undoStack = new Stack<>();
-	private Stack<int[][]> redoStack = new Stack<>();
+	// local strokes and fills; the memory budget in bytes can be set with -Dkidpaint.undoBudget
+	private UndoHistory history = new UndoHistory(Long.getLong("kidpaint.undoBudget", 1 << 20));
 	PaintMode paintMode = PaintMode.Pixel;
+	private FloodFill fill = new FloodFill();
+	private static final int RECONNECT_ATTEMPTS = 8;
 	/** End of Variable Declaration */
 
+	/**
+	 * A connection to the server on which the handshake is done.
+	 */
+	static class Connection {
+		final Socket socket;
+		final DataOutputStream out;
+		// the protocol version agreed with the server
+		final int version;
+
+		Connection(Socket socket, DataOutputStream out, int version) {
+			this.socket = socket;
+			this.out = out;
+			this.version = version;
+		}
+	}
+
+	/**
+	 * PIXEL frames received back to back, staged as one update so a burst of them costs one entry in the
+	 * dispatcher instead of a closure per pixel. A batch takes no more pixels once it has started to run.
+	 */
+	private class PixelBatch implements Runnable {
+		// col, row and color of each pixel
+		private int[] cells = new int[3 * 64];
+		private int size;
+		private boolean ran;
+
+		/**
+		 * @return false if the batch has already run, in which case the pixel needs a new batch
+		 */
+		synchronized boolean add(int col, int row, int color) {
+			if (ran) return false;
+			if (size == cells.length) cells = Arrays.copyOf(cells, size * 2);
+			cells[size++] = col;
+			cells[size++] = row;
+			cells[size++] = color;
+			return true;
+		}
+
+		@Override
+		public void run() {
+			int[] staged;
+			int n;
+			synchronized (this) {
+				ran = true;
+				staged = cells;
+				n = size;
+			}
+			for (int i = 0; i < n; i += 3) {
+				if (panel.contains(staged[i], staged[i + 1])) panel.set(staged[i], staged[i + 1], staged[i + 2]);
+			}
+		}
+	}
+
 	public static UI getInstance() {
 		return instance;
 	}
@@ -58,21 +132,35 @@ public class UI extends JFrame {
 	/**
 	 * get the instance of UI. Singleton design pattern.
 	 */
-	public static UI getInstance(String serverIP, int port, String name) throws IOException {
+	public static UI getInstance(String serverIP, int port, String name, String room) throws IOException {
 		if (instance == null)
-			instance = new UI(serverIP, port, name);
+			instance = new UI(handshake(Discovery.open(serverIP, port), name, room, 0, 0), name, room);
+		return instance;
+	}
+
+	/**
+	 * get the instance of UI, using a connection the caller has already opened and handshaken, e.g. while
+	 * looking for a server.
+	 * 
+	 * @param connection a connection returned by handshake()
+	 */
+	public static UI getInstance(Connection connection, String name, String room) {
+		if (instance == null)
+			instance = new UI(connection, name, room);
 		return instance;
 	}
 
 	/**
 	 * private constructor. To create an instance of UI, call UI.getInstance() instead.
 	 */
-	private UI(String serverIP, int port, String name) throws IOException {
-		setTitle("KidPaint");
+	private UI(Connection connection, String name, String room) {
+		setTitle("KidPaint - " + room);
 
 		this.name = name;
-		Socket socket = new Socket(serverIP, port);
-		out = new DataOutputStream(socket.getOutputStream());
+		this.serverIP = connection.socket.getInetAddress().getHostAddress();
+		this.port = connection.socket.getPort();
+		this.room = room;
+		Socket socket = use(connection);
 		Thread t = new Thread(() -> {
 			receiveData(socket);
 		});
@@ -84,44 +172,33 @@ public class UI extends JFrame {
 
 		paintPanel = new JPanel() {
 
-			// refresh the paint panel
+			// refresh the paint panel from the renderer's off-screen image
 			@Override
 			public void paint(Graphics g) {
 				super.paint(g);
-
-				Graphics2D g2 = (Graphics2D) g; // Graphics2D provides the setRenderingHints method
-
-				// enable anti-aliasing
-			    RenderingHints rh = new RenderingHints(
-			             RenderingHints.KEY_ANTIALIASING,
-			             RenderingHints.VALUE_ANTIALIAS_ON);
-			    g2.setRenderingHints(rh);
-
-			    // clear the paint panel using black
-				g2.setColor(Color.black);
-				g2.fillRect(0, 0, this.getWidth(), this.getHeight());
-
-				// draw and fill circles with the specific colors stored in the data array
-				for(int x = 0; x< panel.length; x++) {
-					for (int y = 0; y< panel[0].length; y++) {
-						g2.setColor(new Color(panel[x][y]));
-						g2.fillArc(blockSize * x, blockSize * y, blockSize, blockSize, 0, 360);
-						g2.setColor(Color.darkGray);
-						g2.drawArc(blockSize * x, blockSize * y, blockSize, blockSize, 0, 360);
-					}
-				}
+				renderer.paint((Graphics2D) g);
 			}
 		};
+		renderer = new CanvasRenderer(paintPanel);
+		renderer.setCanvas(panel, blockSize);
+		if (Boolean.getBoolean("kidpaint.dispatchStats"))
+			new Timer(5000, e -> System.out.println("Update dispatch: " + updates.stats())).start();
 
 		paintPanel.addMouseListener(new MouseListener() {
 			@Override public void mouseClicked(MouseEvent e) {}
 			@Override public void mouseEntered(MouseEvent e) {}
 			@Override public void mouseExited(MouseEvent e) {}
-			@Override public void mousePressed(MouseEvent e) {}
+
+			// a pen stroke is undone as a whole
+			@Override
+			public void mousePressed(MouseEvent e) {
+				if (paintMode == PaintMode.Pixel) history.begin();
+			}
 
 			// handle the mouse-up event of the paint panel
 			@Override
 			public void mouseReleased(MouseEvent e) {
+				history.end();
 				if (paintMode == PaintMode.Area && e.getX() >= 0 && e.getY() >= 0) {
 					try {
 						paintArea(e.getX()/blockSize, e.getY()/blockSize);
@@ -148,7 +225,7 @@ public class UI extends JFrame {
 			@Override public void mouseMoved(MouseEvent e) {}
 		});
 
-		paintPanel.setPreferredSize(new Dimension(panel.length * blockSize, panel[0].length * blockSize));
+		paintPanel.setPreferredSize(new Dimension(panel.width() * blockSize, panel.height() * blockSize));
 
 		JScrollPane scrollPaneLeft = new JScrollPane(paintPanel, JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED, JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED);
 
@@ -233,66 +310,35 @@ public class UI extends JFrame {
 		});
 
 		undoButton.addActionListener(e -> {
-			if (!undoStack.isEmpty()) {
-				redoStack.push(cloneArray(panel)); // Save current state before undoing
-				panel = undoStack.pop(); // Set panel to previous state
-				paintPanel.repaint(); // Redraw the panel
-				// send entire panel state
-				for(int x = 0; x< panel.length; x++) {
-					for (int y = 0; y< panel[0].length; y++) {
-						try {
-							out.writeInt(0);
-							String p = x + " " + y + " " + panel[x][y];
-							out.writeInt(p.length());
-							out.write(p.getBytes(), 0, p.length());
-						} catch (IOException e1) {
-							e1.printStackTrace();
-						}
-					}
-				}
+			Region region = history.undo(panel);
+			if (region.isEmpty()) return;
+			renderer.sync();
+			// only the cells the operation touched are sent
+			try {
+				Protocol.writeRegion(out, region);
+			} catch (IOException e1) {
+				e1.printStackTrace();
 			}
 		});
 
 		redoButton.addActionListener(e -> {
-			if (!redoStack.isEmpty()) {
-				undoStack.push(cloneArray(panel)); // Save current state before redoing
-				panel = redoStack.pop(); // Set panel to next state
-				paintPanel.repaint(); // Redraw the panel
-				// send entire panel state
-				for(int x = 0; x< panel.length; x++) {
-					for (int y = 0; y< panel[0].length; y++) {
-						try {
-							out.writeInt(0);
-							String p = x + " " + y + " " + panel[x][y];
-							out.writeInt(p.length());
-							out.write(p.getBytes(), 0, p.length());
-						} catch (IOException e1) {
-							e1.printStackTrace();
-						}
-					}
-				}
+			Region region = history.redo(panel);
+			if (region.isEmpty()) return;
+			renderer.sync();
+			// only the cells the operation touched are sent
+			try {
+				Protocol.writeRegion(out, region);
+			} catch (IOException e1) {
+				e1.printStackTrace();
 			}
 		});
 
 
 		// Load data
 		loadToggleButton.addActionListener(e -> {
-			int[][] temp;
 			int r = fileChooser.showOpenDialog(null);
 			if (r == JFileChooser.APPROVE_OPTION) {
-				try {
-					temp = SaveAndLoad.load(fileChooser.getSelectedFile().getAbsolutePath());
-					for (int i = 0; i < SaveAndLoad.row; i++) {
-						for (int j = 0; j < SaveAndLoad.col; j++) {
-							out.writeInt(0);
-							String p = i + " " + j + " " + temp[i][j];
-							out.writeInt(p.length());
-							out.write(p.getBytes(), 0, p.length());
-						}
-					}
-				} catch (Exception ex) {
-					ex.printStackTrace();
-				}
+				loadDrawing(fileChooser.getSelectedFile().getAbsolutePath());
 			}
 			loadToggleButton.setSelected(false);
 		});
@@ -301,11 +347,7 @@ public class UI extends JFrame {
 		saveToggleButton.addActionListener(e -> {
 			int r = fileChooser.showSaveDialog(null);
 			if (r == JFileChooser.APPROVE_OPTION) {
-				try {
-					SaveAndLoad.save(fileChooser.getSelectedFile().getAbsolutePath(), panel);
-				} catch (Exception ex) {
-					ex.printStackTrace();
-				}
+				saveDrawing(fileChooser.getSelectedFile().getAbsolutePath());
 			}
 			saveToggleButton.setSelected(false);
 		});
@@ -362,114 +404,123 @@ public class UI extends JFrame {
 	 */
 	private void onTextInputted(String text) {
 		try {
-			text = name + ": " + text;
-			out.writeInt(-1);
-			out.writeInt(text.length());
-			out.write(text.getBytes(), 0, text.length());
+			byte[] bytes = (name + ": " + text).getBytes(StandardCharsets.UTF_8);
+			Protocol.writeFrame(out, Protocol.CHAT, bytes, bytes.length);
 		} catch (IOException e) {
 			chatArea.append("Unable to send message to the server!\n");
 		}
 	}
 
 	/**
-	 * Saves the current state of the panel into the undo stack.
-	 * The current state is represented by a 2D array of integers.
-	 * Each element in the array represents the color of a pixel in the panel.
-	 * The method copies the contents of the panel into a new array and pushes it onto the undo stack.
-	 * After saving the current state, the redo stack is cleared.
+	 * loads a drawing on a background thread and, once it is read, sends the cells that differ
+	 * from the current drawing to the server as one region
+	 * @param path - the file to load
 	 */
-	private void saveCurrentState() {
-		int[][] currentState = new int[panel.length][panel[0].length];
-		for (int i = 0; i < panel.length; i++) {
-			System.arraycopy(panel[i], 0, currentState[i], 0, panel[i].length);
-		}
-		undoStack.push(currentState);
-		redoStack.clear();
+	private void loadDrawing(String path) {
+		ProgressMonitor monitor = new ProgressMonitor(this, "Loading " + path, null, 0, 100);
+		SwingWorker<TiledCanvas, Void> worker = new SwingWorker<TiledCanvas, Void>() {
+			@Override
+			protected TiledCanvas doInBackground() throws IOException {
+				return SaveAndLoad.load(path, this::setProgress);
+			}
+
+			@Override
+			protected void done() {
+				monitor.close();
+				try {
+					TiledCanvas temp = get();
+					Region region = new Region();
+					region.addChanges(panel, temp);
+					Protocol.writeRegion(out, region);
+				} catch (Exception ex) {
+					ex.printStackTrace();
+					chatArea.append("Unable to load " + path + "\n");
+				}
+			}
+		};
+		worker.addPropertyChangeListener(evt -> {
+			if ("progress".equals(evt.getPropertyName())) monitor.setProgress((Integer) evt.getNewValue());
+		});
+		worker.execute();
 	}
 
 	/**
-	 * change the color of a specific pixel
-	 * @param col, row - the position of the selected pixel
+	 * saves a copy of the current drawing on a background thread, so drawing can go on while it is written
+	 * @param path - the file to save to
 	 */
-	public void paintPixel(int col, int row) throws IOException, ArrayIndexOutOfBoundsException {
-		if (!eraserMode && panel[col][row] != selectedColor) saveCurrentState();
-		else if (eraserMode && panel[col][row] == selectedColor) saveCurrentState();
-
-		if (col >= panel.length || row >= panel[0].length) return;
-
-		panel[col][row] = selectedColor;
-		paintPanel.repaint(col * blockSize, row * blockSize, blockSize, blockSize);
-
-		panel[col][row] = eraserMode ? 0 : selectedColor;
-
-		out.writeInt(0);
-		String p = col + " " + row + " " + panel[col][row];
-
-		out.writeInt(p.length());
-		out.write(p.getBytes(), 0, p.length());
+	private void saveDrawing(String path) {
+		TiledCanvas copy = panel.copy();
+		ProgressMonitor monitor = new ProgressMonitor(this, "Saving " + path, null, 0, 100);
+		SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>() {
+			@Override
+			protected Void doInBackground() throws IOException {
+				SaveAndLoad.save(path, copy, this::setProgress);
+				return null;
+			}
 
+			@Override
+			protected void done() {
+				monitor.close();
+				try {
+					get();
+				} catch (Exception ex) {
+					ex.printStackTrace();
+					chatArea.append("Unable to save " + path + "\n");
+				}
+			}
+		};
+		worker.addPropertyChangeListener(evt -> {
+			if ("progress".equals(evt.getPropertyName())) monitor.setProgress((Integer) evt.getNewValue());
+		});
+		worker.execute();
 	}
 
 	/**
-	 * change the color of a specific area
+	 * change the color of a specific pixel
 	 * @param col, row - the position of the selected pixel
-	 * @return a list of modified pixels
 	 */
-	public List paintArea(int col, int row) throws IOException {
-		if (panel[col][row] != selectedColor) saveCurrentState();
-
-		LinkedList<Point> filledPixels = new LinkedList<Point>();
-
-		if (col >= panel.length || row >= panel[0].length) return filledPixels;
-
-		int originalColor = panel[col][row];
-		LinkedList<Point> buffer = new LinkedList<Point>();
-
-		int tempColor = selectedColor;
-
-		if (eraserMode) tempColor = 0;
-
-		if (originalColor != tempColor) {
-			buffer.add(new Point(col, row));
-
-			while(!buffer.isEmpty()) {
-				Point point = buffer.removeFirst();
-				int x = point.x;
-				int y = point.y;
-
-				if (panel[x][y] != originalColor) continue;
+	public void paintPixel(int col, int row) throws IOException, ArrayIndexOutOfBoundsException {
+		if (!panel.contains(col, row)) return;
 
-				panel[x][y] = tempColor;
+		int color = eraserMode ? 0 : selectedColor;
+		history.record(col, row, panel.get(col, row), color);
 
-				out.writeInt(0);
-				String p = x + " " + y + " " + panel[x][y];
-				out.writeInt(p.length());
-				out.write(p.getBytes(), 0, p.length());
+		panel.set(col, row, color);
+		renderer.sync();
 
-				filledPixels.add(point);
+		Protocol.writePixel(out, col, row, color);
 
-				if (x > 0 && panel[x-1][y] == originalColor) buffer.add(new Point(x-1, y));
-				if (x < panel.length - 1 && panel[x+1][y] == originalColor) buffer.add(new Point(x+1, y));
-				if (y > 0 && panel[x][y-1] == originalColor) buffer.add(new Point(x, y-1));
-				if (y < panel[0].length - 1 && panel[x][y+1] == originalColor) buffer.add(new Point(x, y+1));
-			}
-			paintPanel.repaint();
-		}
-		return filledPixels;
 	}
 
 	/**
-	 * Creates a deep copy of a 2D integer array.
-	 * 
-	 * @param source the original array to be cloned
-	 * @return a new array that is a deep copy of the source array
+	 * change the color of a specific area. If the server supports it, only the position and color are sent
+	 * and the server fills its own canvas and sends back the filled cells, so that everyone ends up with
+	 * the same fill; the fill is only run locally to know which cells to undo.
+	 * @param col, row - the position of the selected pixel
+	 * @return the number of modified pixels
 	 */
-	private int[][] cloneArray(int[][] source) {
-		int[][] clone = new int[source.length][];
-		for (int i = 0; i < source.length; i++) {
-			clone[i] = source[i].clone();
+	public int paintArea(int col, int row) throws IOException {
+		int originalColor = panel.contains(col, row) ? panel.get(col, row) : 0;
+		int newColor = eraserMode ? 0 : selectedColor;
+		int cells = fill.fill(panel, col, row, newColor);
+		if (cells == 0) return 0;
+
+		history.begin();
+		fill.forEachSpan((x, y, length, color) -> {
+			for (int i = 0; i < length; i++) history.record(x + i, y, originalColor, color);
+		});
+		history.end();
+
+		if (version >= Protocol.FILL_VERSION) {
+			fill.forEachSpan((x, y, length, color) -> panel.setRun(x, y, length, originalColor));
+			byte[] payload = new byte[Protocol.PIXEL_SIZE];
+			Protocol.encodePixel(payload, 0, col, row, newColor);
+			Protocol.writeFrame(out, Protocol.FILL, payload, payload.length);
+			return cells;
 		}
-		return clone;
+		renderer.sync();
+		Protocol.writeRegion(out, fill.encode());
+		return cells;
 	}
 
 	/**
@@ -477,47 +528,203 @@ public class UI extends JFrame {
 	 * @param data
 	 * @param blockSize
 	 */
-	public void setData(int[][] data, int blockSize) {
+	public void setData(TiledCanvas data, int blockSize) {
 		this.panel = data;
 		this.blockSize = blockSize;
-		paintPanel.setPreferredSize(new Dimension(data.length * blockSize, data[0].length * blockSize));
-		paintPanel.repaint();
+		paintPanel.setPreferredSize(new Dimension(data.width() * blockSize, data.height() * blockSize));
+		paintPanel.revalidate();
+		renderer.setCanvas(data, blockSize);
 	}
 
 	/**
 	 * Receives data from the specified socket and updates the UI accordingly.
+	 * If the connection drops, it reconnects and carries on with the new connection.
 	 * 
 	 * @param socket the socket to receive data from
 	 */
 	private void receiveData(Socket socket) {
-		try {
-			byte[] buffer = new byte[1024];
-			DataInputStream in = new DataInputStream(socket.getInputStream());
-			while (true) {
-				int type = in.readInt();
-				int len = in.readInt();
-				in.read(buffer, 0, len);
-				String content = new String(buffer, 0, len);
-
-				if (type == 0) {
-					String[] p = content.split(" ");
-					int col = Integer.parseInt(p[0]);
-					int row = Integer.parseInt(p[1]);
-					int color = Integer.parseInt(p[2]);
-					SwingUtilities.invokeLater(() -> {
-						panel[col][row] = color;
-						paintPanel.repaint(col * blockSize, row * blockSize, blockSize, blockSize);
-					});
-				}
-				if (type == -1) {
-					SwingUtilities.invokeLater(() -> {
-						chatArea.append(content + "\n");
+		while (socket != null) {
+			try {
+				receive(socket);
+			} catch (IOException e) {
+				System.err.println("Connection lost: " + e.getMessage());
+			}
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+			socket = reconnect();
+		}
+	}
+
+	/**
+	 * Receives frames until the connection drops.
+	 * 
+	 * @param socket the socket to receive data from
+	 * @throws IOException if the connection drops
+	 */
+	private void receive(Socket socket) throws IOException {
+		byte[] buffer = new byte[1024];
+		// buffered, so reading a header is not a system call per byte
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		// created with the first compressed frame; the server compresses only if we asked for it
+		Compression.Decoder decoder = null;
+		// the batch that PIXEL frames are added to until a frame of another type arrives
+		PixelBatch pixels = null;
+		while (true) {
+			int type = in.readInt();
+			int len = in.readInt();
+			buffer = Protocol.readPayload(in, buffer, len);
+			byte[] data = buffer;
+			if (type == Protocol.COMPRESSED) {
+				if (decoder == null) decoder = new Compression.Decoder(Protocol.MAX_FRAME_SIZE, null);
+				decoder.decode(buffer, len);
+				type = decoder.type;
+				len = decoder.len;
+				data = decoder.payload;
+			}
 
-					});
+			if (type == Protocol.PIXEL) {
+				int col = Protocol.pixelCol(data, 0);
+				int row = Protocol.pixelRow(data, 0);
+				int color = Protocol.pixelColor(data, 0);
+				if (pixels == null || !pixels.add(col, row, color)) {
+					pixels = new PixelBatch();
+					pixels.add(col, row, color);
+					updates.post(pixels);
+				}
+			} else {
+				// later pixels must not be applied ahead of this frame
+				pixels = null;
+			}
+			if (type == Protocol.REGION) {
+				byte[] payload = Arrays.copyOf(data, len);
+				updates.post(() -> {
+					try {
+						Region.apply(payload, payload.length, panel);
+					} catch (IllegalArgumentException ex) {
+						ex.printStackTrace();
+					}
+				});
+			}
+			if (type == Protocol.SNAPSHOT) {
+				try {
+					TiledCanvas canvas = Snapshot.decode(data, len);
+					updates.post(() -> setData(canvas, blockSize));
+				} catch (IllegalArgumentException ex) {
+					ex.printStackTrace();
+				}
+			}
+			if (type == Protocol.CHAT) {
+				String content = new String(data, 0, len, StandardCharsets.UTF_8);
+				lastChat = content;
+				updates.post(() -> chatArea.append(content + "\n"));
+			}
+			if (type == Protocol.CHAT_HISTORY) {
+				ArrayList<String> history = new ArrayList<>();
+				try {
+					Chat.decodeHistory(data, len, message -> history.add(new String(message, StandardCharsets.UTF_8)));
+				} catch (IllegalArgumentException ex) {
+					ex.printStackTrace();
+				}
+				// after reconnecting, only show what came after the last message we already have
+				int from = lastChat == null ? 0 : history.lastIndexOf(lastChat) + 1;
+				if (!history.isEmpty()) lastChat = history.get(history.size() - 1);
+				StringBuilder sb = new StringBuilder();
+				for (String message : history.subList(from, history.size())) {
+					sb.append(message).append('\n');
 				}
+				if (sb.length() > 0) updates.post(() -> chatArea.append(sb.toString()));
 			}
+			if (type == Protocol.SYNC && len >= Protocol.SYNC_SIZE) {
+				syncEpoch = Protocol.getLong(data, 0);
+				syncSeq = Protocol.getLong(data, 8);
+			}
+		}
+	}
+
+	/**
+	 * Opens a connection to the server and performs the handshake, offering the last SYNC position
+	 * so that the server only sends what was missed.
+	 * 
+	 * @param announce whether to send a discovery packet first, which older servers wait for before accepting
+	 *                 a connection; the login page already sent one for the first connection
+	 * @return the connected socket
+	 * @throws IOException if the server cannot be reached
+	 */
+	private Socket connect(boolean announce) throws IOException {
+		if (announce) {
+			try (DatagramSocket discovery = new DatagramSocket()) {
+				byte[] hello = Protocol.discoveryRequest(name).getBytes(StandardCharsets.UTF_8);
+				discovery.send(new DatagramPacket(hello, hello.length, InetAddress.getByName(serverIP), Protocol.DISCOVERY_PORT));
+			}
+		}
+		return use(handshake(Discovery.open(serverIP, port), name, room, syncEpoch, syncSeq));
+	}
+
+	/**
+	 * Sends drawing and chat over a handshaken connection from now on.
+	 * 
+	 * @param connection the connection
+	 * @return its socket
+	 */
+	private Socket use(Connection connection) {
+		version = connection.version;
+		out = connection.out;
+		return connection.socket;
+	}
+
+	/**
+	 * Performs the handshake on a freshly opened connection. A server that does not answer within
+	 * Discovery.HANDSHAKE_TIMEOUT is given up on; afterwards reads wait as long as it takes.
+	 * Blocks, so it belongs on a background thread.
+	 * 
+	 * @param socket the connected socket
+	 * @param name the name of the user
+	 * @param room the room to join or create
+	 * @param epoch the epoch of the last SYNC frame, 0 for a fresh join
+	 * @param seq the sequence number of the last SYNC frame
+	 * @return the handshaken connection
+	 * @throws IOException if the handshake fails or times out; the socket is closed
+	 */
+	static Connection handshake(Socket socket, String name, String room, long epoch, long seq) throws IOException {
+		try {
+			socket.setSoTimeout(Discovery.HANDSHAKE_TIMEOUT);
+			DataOutputStream stream = new DataOutputStream(socket.getOutputStream());
+			Protocol.Hello answer = Protocol.clientHello(new DataInputStream(socket.getInputStream()), stream, name,
+					room, epoch, seq, true);
+			socket.setSoTimeout(0);
+			// every write to the stream is one whole frame, which the encoder compresses if it is big enough
+			if (answer.compress)
+				stream = new DataOutputStream(new Compression.Output(socket.getOutputStream(),
+						new Compression.Encoder(Protocol.COMPRESS_MIN, null)));
+			return new Connection(socket, stream, answer.version);
 		} catch (IOException e) {
-			e.printStackTrace();
+			socket.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Tries to connect again, waiting longer after every failed attempt.
+	 * 
+	 * @return the connected socket, or null after giving up
+	 */
+	private Socket reconnect() {
+		updates.post(() -> chatArea.append("Connection lost, reconnecting...\n"));
+		for (int attempt = 0; attempt < RECONNECT_ATTEMPTS; attempt++) {
+			try {
+				Thread.sleep(Math.min(1000L << attempt, 16000));
+				Socket socket = connect(true);
+				updates.post(() -> chatArea.append("Reconnected.\n"));
+				return socket;
+			} catch (IOException e) {
+				System.err.println("Reconnect failed: " + e.getMessage());
+			} catch (InterruptedException e) {
+				return null;
+			}
 		}
+		updates.post(() -> chatArea.append("Unable to reconnect to the server!\n"));
+		return null;
 	}
 }
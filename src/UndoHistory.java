@@ -0,0 +1,174 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * The UndoHistory class keeps the local drawing operations of a client so they can be undone and redone.
+ * An operation, e.g. one pen stroke or one fill, is stored as the cells it changed with their colors
+ * before and after, instead of as a copy of the canvas. Operations are kept oldest first within a
+ * memory budget; once the budget is exceeded the oldest operations are forgotten.
+ * The class is not thread-safe; the UI only uses it on the event dispatch thread.
+ */
+public class UndoHistory {
+    /** Estimated bytes per recorded cell: a packed position and two colors. */
+    static final int CELL_BYTES = 12;
+
+    private final long budget;
+    private final ArrayDeque<Delta> undo = new ArrayDeque<>();
+    private final ArrayDeque<Delta> redo = new ArrayDeque<>();
+    private long used;
+    // the operation being recorded, or null
+    private Delta open;
+
+    /**
+     * The cells changed by one operation.
+     */
+    private static class Delta {
+        int[] cells = new int[16];
+        int[] before = new int[16];
+        int[] after = new int[16];
+        int size;
+        // position + 1 of every cell while the operation is open, so a cell painted twice is stored once;
+        // an open-addressing table kept at most half full, 0 marking a free slot
+        int[] index = new int[32];
+
+        void record(int cell, int oldColor, int newColor) {
+            int mask = index.length - 1;
+            int slot = hash(cell) & mask;
+            while (index[slot] != 0) {
+                int i = index[slot] - 1;
+                if (cells[i] == cell) {
+                    after[i] = newColor;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (size == cells.length) {
+                cells = Arrays.copyOf(cells, size * 2);
+                before = Arrays.copyOf(before, size * 2);
+                after = Arrays.copyOf(after, size * 2);
+            }
+            index[slot] = size + 1;
+            cells[size] = cell;
+            before[size] = oldColor;
+            after[size] = newColor;
+            size++;
+            if (size * 2 > index.length) rehash();
+        }
+
+        private void rehash() {
+            int[] table = new int[index.length * 2];
+            int mask = table.length - 1;
+            for (int i = 0; i < size; i++) {
+                int slot = hash(cells[i]) & mask;
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = i + 1;
+            }
+            index = table;
+        }
+
+        private static int hash(int cell) {
+            // cells of a stroke differ in their low bits, so spread them over the whole table
+            int h = cell * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        long bytes() {
+            return (long) size * CELL_BYTES;
+        }
+    }
+
+    /**
+     * @param budget The number of bytes the recorded operations may take.
+     */
+    UndoHistory(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Starts a new operation. Every cell recorded until end() is undone and redone together.
+     */
+    void begin() {
+        end();
+        open = new Delta();
+    }
+
+    /**
+     * Records a cell change of the current operation. A change outside of begin() and end() is an operation of its own.
+     *
+     * @param col The column of the cell.
+     * @param row The row of the cell.
+     * @param oldColor The color before the change.
+     * @param newColor The color after the change.
+     */
+    void record(int col, int row, int oldColor, int newColor) {
+        if (oldColor == newColor) return;
+        boolean single = open == null;
+        if (single) open = new Delta();
+        open.record((row << 16) | col, oldColor, newColor);
+        if (single) end();
+    }
+
+    /**
+     * Finishes the current operation. An operation that changed nothing is dropped,
+     * otherwise it becomes the next one to undo and the redo history is cleared.
+     */
+    void end() {
+        Delta delta = open;
+        open = null;
+        if (delta == null || delta.size == 0) return;
+        delta.index = null;
+        undo.addLast(delta);
+        used += delta.bytes();
+        for (Delta d : redo) {
+            used -= d.bytes();
+        }
+        redo.clear();
+        while (used > budget && undo.size() > 1) {
+            used -= undo.removeFirst().bytes();
+        }
+    }
+
+    /**
+     * Reverts the last operation on a canvas. Cells that someone else repainted since are left alone.
+     *
+     * @param canvas The canvas to revert the cells of.
+     * @return The reverted cells, to be sent to the server; empty if there is nothing to undo.
+     */
+    Region undo(TiledCanvas canvas) {
+        end();
+        Region region = new Region();
+        Delta delta = undo.pollLast();
+        if (delta == null) return region;
+        apply(canvas, delta.cells, delta.size, delta.after, delta.before, region);
+        redo.addLast(delta);
+        return region;
+    }
+
+    /**
+     * Repeats the last undone operation on a canvas. Cells that someone else repainted since are left alone.
+     *
+     * @param canvas The canvas to repaint the cells of.
+     * @return The repainted cells, to be sent to the server; empty if there is nothing to redo.
+     */
+    Region redo(TiledCanvas canvas) {
+        end();
+        Region region = new Region();
+        Delta delta = redo.pollLast();
+        if (delta == null) return region;
+        apply(canvas, delta.cells, delta.size, delta.before, delta.after, region);
+        undo.addLast(delta);
+        return region;
+    }
+
+    private static void apply(TiledCanvas canvas, int[] cells, int size, int[] from, int[] to, Region region) {
+        for (int i = 0; i < size; i++) {
+            int col = cells[i] & 0xFFFF;
+            int row = cells[i] >>> 16;
+            if (!canvas.contains(col, row) || canvas.get(col, row) != from[i]) continue;
+            canvas.set(col, row, to[i]);
+            region.add(col, row, to[i]);
+        }
+    }
+}
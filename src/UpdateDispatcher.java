@@ -0,0 +1,82 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.swing.SwingUtilities;
+
+/**
+ * The UpdateDispatcher class hands updates decoded by the receive thread to the event dispatch thread in batches.
+ * Updates are staged in a lock-free queue and at most one drain is waiting in the Swing event queue at a time,
+ * so a burst of thousands of updates costs one event and, through the flush callback, one repaint,
+ * instead of one event and one repaint per update.
+ */
+public class UpdateDispatcher {
+    private final ConcurrentLinkedQueue<Runnable> staged = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final Runnable flush;
+
+    // maxDepth is written by the posting thread, the rest by the event dispatch thread; all are read by stats()
+    private volatile int maxDepth;
+    private volatile long drains;
+    private volatile long applied;
+    private volatile long drainNanos;
+    private volatile long maxDrainNanos;
+
+    /**
+     * @param flush Runs on the event dispatch thread after every batch, e.g. to repaint what the batch changed.
+     */
+    UpdateDispatcher(Runnable flush) {
+        this.flush = flush;
+    }
+
+    /**
+     * Stages an update to be run on the event dispatch thread. Updates run in the order they are posted.
+     *
+     * @param update The update.
+     */
+    void post(Runnable update) {
+        staged.add(update);
+        int d = depth.incrementAndGet();
+        if (d > maxDepth) maxDepth = d;
+        if (scheduled.compareAndSet(false, true)) SwingUtilities.invokeLater(this::drain);
+    }
+
+    /**
+     * Runs the staged updates on the event dispatch thread. A drain only runs the updates that were staged
+     * when it started and leaves the rest to the next drain, so user input is handled in between.
+     */
+    private void drain() {
+        long start = System.nanoTime();
+        // cleared before polling, so an update posted during the drain schedules the next one
+        scheduled.set(false);
+        int count = depth.get();
+        int n = 0;
+        Runnable update;
+        while (n < count && (update = staged.poll()) != null) {
+            depth.decrementAndGet();
+            try {
+                update.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            n++;
+        }
+        flush.run();
+        if (!staged.isEmpty() && scheduled.compareAndSet(false, true)) SwingUtilities.invokeLater(this::drain);
+
+        long elapsed = System.nanoTime() - start;
+        drains++;
+        applied += n;
+        drainNanos += elapsed;
+        if (elapsed > maxDrainNanos) maxDrainNanos = elapsed;
+    }
+
+    /**
+     * @return The current and largest number of staged updates, and how long drains take.
+     */
+    String stats() {
+        long d = drains;
+        return String.format("depth %d (max %d), %d drains, %d updates, drain avg %.2f ms, max %.2f ms",
+                depth.get(), maxDepth, d, applied, d == 0 ? 0 : drainNanos / 1e6 / d, maxDrainNanos / 1e6);
+    }
+}